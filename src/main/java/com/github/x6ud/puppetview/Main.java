@@ -1,10 +1,23 @@
 package com.github.x6ud.puppetview;
 
 import com.github.x6ud.puppetview.misc.ClipboardUtils;
+import com.github.x6ud.puppetview.misc.CompatibleImages;
+import com.github.x6ud.puppetview.misc.ImageInterner;
+import com.github.x6ud.puppetview.misc.ImageUtils;
+import com.github.x6ud.puppetview.misc.ImportedImage;
 import com.github.x6ud.puppetview.misc.MenuBuilder;
+import com.github.x6ud.puppetview.misc.OffHeapImages;
+import com.github.x6ud.puppetview.misc.PerfLog;
+import com.github.x6ud.puppetview.misc.ScreenCapture;
+import com.github.x6ud.puppetview.misc.TileSource;
 import com.github.x6ud.puppetview.window.ColorPicker;
 import com.github.x6ud.puppetview.window.ReferenceImage;
 import com.github.x6ud.puppetview.window.Screenshot;
+import com.github.x6ud.puppetview.workspace.AutoSaver;
+import com.github.x6ud.puppetview.workspace.ImageCodec;
+import com.github.x6ud.puppetview.workspace.PixelMemoryManager;
+import com.github.x6ud.puppetview.workspace.WorkspaceFile;
+import com.github.x6ud.puppetview.workspace.WorkspaceJournal;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -22,8 +35,14 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
 
@@ -35,20 +54,60 @@ public class Main {
     private static final String DEFAULT_WORKSPACE_PATH = "./auto-save." + WORKSPACE_EXTENSION;
     private static final FileFilter workspaceFilter = new FileNameExtensionFilter("Workspace", WORKSPACE_EXTENSION);
 
+    private static final ExecutorService decoderPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "workspace-decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // waits for the tray menu to close before capturing
+    private static final ExecutorService trayActionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tray-action");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // how long to wait at most for the tray menu to disappear, and how often to look
+    private static final long POPUP_MAX_WAIT_MS = 100;
+    private static final long POPUP_POLL_MS = 16;
+    // area around the pointer that is watched, large enough for the whole tray menu
+    private static final int POPUP_AREA_WIDTH = 600;
+    private static final int POPUP_AREA_HEIGHT = 1200;
+
+    // one thread, so new windows open in the order their images came in
+    private static final ExecutorService ingestExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-ingest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // overview of images that could not be loaded, their placeholder tile source is plain grey as well
+    private static final BufferedImage UNLOADED_OVERVIEW = createUnloadedOverview();
+
+    private final long startTime = System.nanoTime();
     private final List<ReferenceImage> referenceImageList = new ArrayList<>();
+    private final ImageInterner imageInterner = new ImageInterner();
+    private final AutoSaver autoSaver = new AutoSaver(DEFAULT_WORKSPACE_PATH, () -> referenceImageList);
+    private final PixelMemoryManager memoryManager = new PixelMemoryManager(() -> referenceImageList, imageInterner);
+    private final Screenshot screenshot = new Screenshot();
+    private final ColorPicker colorPicker = new ColorPicker(ClipboardUtils::setString);
     private String colorPickerMode = "html";
+    private ImageCodec workspaceCodec = ImageCodec.PNG;
+    // a save requested while a workspace was still loading, written once all its images are in
+    private String pendingSavePath;
 
     private void start() throws Exception {
         Frame mainFrame = new Frame();
 
         // create tray icon menu
         PopupMenu popupMenu = MenuBuilder.popup();
-        MenuBuilder.item(popupMenu, "Screenshot", e -> {
-            waitForPopupMenuToDisappear();
-            new Screenshot(this::showImage).screenshot();
-        });
+        MenuBuilder.item(popupMenu, "Screenshot", e -> afterPopupMenuDisappears(
+                () -> screenshot.screenshot(this::showImage, e.getWhen())
+        ));
         MenuBuilder.item(popupMenu, "Load Clipboard", e -> {
-            for (BufferedImage image : ClipboardUtils.getImages()) {
+            for (ImportedImage image : ClipboardUtils.getImages()) {
                 showImage(image);
             }
         });
@@ -59,7 +118,10 @@ public class Main {
             fileDialog.setVisible(true);
             for (File file : fileDialog.getFiles()) {
                 try {
-                    showImage(ImageIO.read(file));
+                    ImportedImage image = ImportedImage.read(file);
+                    if (image != null) {
+                        showImage(image);
+                    }
                 } catch (Exception e1) {
                     e1.printStackTrace();
                 }
@@ -95,18 +157,23 @@ public class Main {
             chooser.setCurrentDirectory(new File("./"));
             chooser.setFileFilter(workspaceFilter);
             if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-                loadWorkspace(chooser.getSelectedFile().getPath());
+                loadWorkspace(chooser.getSelectedFile().getPath(), System.nanoTime());
             }
         });
+        MenuBuilder.radioGroup(
+                        MenuBuilder.menu(popupMenu, "Workspace Format"),
+                        workspaceCodec.name(),
+                        codec -> workspaceCodec = ImageCodec.valueOf(codec))
+                .item("PNG (portable)", ImageCodec.PNG.name())
+                .item("QOI (fast)", ImageCodec.QOI.name())
+                .item("Raw (fastest, largest)", ImageCodec.RAW.name());
         popupMenu.addSeparator();
-        MenuBuilder.item(popupMenu, "Screenshot to Clipboard", e -> {
-            waitForPopupMenuToDisappear();
-            new Screenshot(ClipboardUtils::setImage).screenshot();
-        });
-        MenuBuilder.item(popupMenu, "Color Picker", e -> {
-            waitForPopupMenuToDisappear();
-            new ColorPicker(colorPickerMode, ClipboardUtils::setString).pickColor();
-        });
+        MenuBuilder.item(popupMenu, "Screenshot to Clipboard", e -> afterPopupMenuDisappears(
+                () -> screenshot.screenshot(ClipboardUtils::setImage, e.getWhen())
+        ));
+        MenuBuilder.item(popupMenu, "Color Picker", e -> afterPopupMenuDisappears(
+                () -> colorPicker.pickColor(colorPickerMode, e.getWhen())
+        ));
         MenuBuilder.radioGroup(
                         MenuBuilder.menu(popupMenu, "Color Format"),
                         colorPickerMode,
@@ -153,15 +220,16 @@ public class Main {
         mainFrame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                saveWorkspace(DEFAULT_WORKSPACE_PATH);
+                autoSaver.shutdown();
                 System.exit(0);
             }
         });
 
         // load last workspace
         if (Files.exists(Paths.get(DEFAULT_WORKSPACE_PATH))) {
-            loadWorkspace(DEFAULT_WORKSPACE_PATH);
+            loadWorkspace(DEFAULT_WORKSPACE_PATH, startTime);
         }
+        autoSaver.start();
 
         // give jFileChooser a better look
         try {
@@ -170,24 +238,118 @@ public class Main {
             e.printStackTrace();
         }
 
+        // create the capture windows and robots now, not on the first click
+        screenshot.prewarm();
+        colorPicker.prewarm();
+        trayActionExecutor.submit(ScreenCapture::prewarm);
+        trayActionExecutor.submit(OffHeapImages::deleteStaleFiles);
+
         // complete
         trayIcon.displayMessage("", "PuppetView is running.", TrayIcon.MessageType.NONE);
+        PerfLog.elapsed("Tray ready", startTime);
+    }
+
+    /**
+     * Run an action on the EDT once the tray menu is off the screen, so it does not end up in a capture.
+     */
+    private void afterPopupMenuDisappears(Runnable action) {
+        trayActionExecutor.submit(() -> {
+            waitForPopupMenuToDisappear();
+            SwingUtilities.invokeLater(action);
+        });
     }
 
-    private void waitForPopupMenuToDisappear() {
+    /**
+     * The menu was under the pointer when its item was clicked. It is gone, including any fade out animation,
+     * as soon as two grabs of the screen around the pointer in a row are the same. Usually that is the first
+     * poll, a frame after the click. Bounded, because the desktop underneath may be animated too.
+     */
+    private static void waitForPopupMenuToDisappear() {
+        long start = System.nanoTime();
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e1) {
-            e1.printStackTrace();
+            Grab first = Grab.aroundPointer();
+            if (first == null) {
+                return;
+            }
+            long deadline = start + POPUP_MAX_WAIT_MS * 1000000;
+            long previous = first.hash;
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(POPUP_POLL_MS);
+                long hash = first.again().hash;
+                if (hash == previous) {
+                    break;
+                }
+                previous = hash;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            PerfLog.elapsed("Tray menu gone", start);
         }
     }
 
+    /**
+     * Open a window for a new image. The pixels are converted to the display layout and hashed in the background.
+     */
     private void showImage(BufferedImage image) {
-        referenceImageList.add(new ReferenceImage(image, this::removeReferenceImage));
+        ingestExecutor.submit(() -> {
+            try {
+                long start = System.nanoTime();
+                BufferedImage normalized = OffHeapImages.store(CompatibleImages.normalize(image));
+                long hash = ImageUtils.hash(normalized);
+                BufferedImage interned = imageInterner.intern(normalized, hash);
+                PerfLog.elapsed("Ingested " + image.getWidth() + "x" + image.getHeight()
+                        + " " + CompatibleImages.describe(image) + " as " + CompatibleImages.describe(normalized), start);
+                SwingUtilities.invokeLater(() -> {
+                    ReferenceImage referenceImage = new ReferenceImage(interned, this::removeReferenceImage);
+                    referenceImage.setImageHash(hash);
+                    addReferenceImage(referenceImage);
+                });
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void showImage(ImportedImage image) {
+        if (image.tileSource == null) {
+            showImage(image.image);
+            return;
+        }
+        ingestExecutor.submit(() -> {
+            try {
+                BufferedImage overview = CompatibleImages.normalize(image.image);
+                SwingUtilities.invokeLater(() -> {
+                    // hashed from the file when the workspace is saved
+                    ReferenceImage referenceImage = new ReferenceImage(
+                            image.tileSource.getWidth(),
+                            image.tileSource.getHeight(),
+                            this::removeReferenceImage
+                    );
+                    referenceImage.setImage(overview, image.tileSource);
+                    addReferenceImage(referenceImage);
+                });
+            } catch (Throwable e) {
+                e.printStackTrace();
+                closeQuietly(image.tileSource);
+            }
+        });
+    }
+
+    private void addReferenceImage(ReferenceImage referenceImage) {
+        referenceImage.setStateListener(window -> {
+            autoSaver.stateChanged(window);
+            memoryManager.stateChanged(window);
+        });
+        referenceImageList.add(referenceImage);
+        autoSaver.structureChanged();
+        memoryManager.structureChanged();
     }
 
     private void removeReferenceImage(ReferenceImage referenceImage) {
         referenceImageList.remove(referenceImage);
+        autoSaver.removed(referenceImage);
+        memoryManager.removed(referenceImage);
     }
 
     private void setAllVisible(boolean visible) {
@@ -200,9 +362,14 @@ public class Main {
             ReferenceImage referenceImage = iterator.next();
             referenceImage.close();
             iterator.remove();
+            autoSaver.removed(referenceImage);
+            memoryManager.removed(referenceImage);
         }
     }
 
+    /**
+     * Record of the legacy Java-serialized workspace format, kept so old files can still be imported.
+     */
     public static class WorkspaceImage implements Serializable {
         private static final long serialVersionUID = 1L;
         public transient BufferedImage image;
@@ -225,20 +392,214 @@ public class Main {
     }
 
     private void saveWorkspace(String path) {
-        try (FileOutputStream f = new FileOutputStream(path);
-             ObjectOutputStream os = new ObjectOutputStream(f)
-        ) {
-            List<WorkspaceImage> workspace = new ArrayList<>();
+        for (ReferenceImage item : referenceImageList) {
+            if (!item.isImageLoaded()) {
+                System.err.println("Workspace is still loading, saving once it is loaded: " + path);
+                pendingSavePath = path;
+                return;
+            }
+        }
+        try {
+            List<WorkspaceFile.ImageSource> images = new ArrayList<>();
+            List<ReferenceImage.ImageState> states = new ArrayList<>();
             for (ReferenceImage item : referenceImageList) {
-                workspace.add(new WorkspaceImage(item.getImage(), item.getImageState()));
+                images.add(WorkspaceFile.ImageSource.of(item));
+                states.add(item.getImageState());
             }
-            os.writeObject(workspace);
+            ImageCodec codec = workspaceCodec;
+            // images shown tile by tile can only be saved a strip at a time, and are restored the same way
+            WorkspaceFile.save(path, images, states, image -> image.getTileSource() != null ? ImageCodec.RAW : codec);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void savePendingWorkspace() {
+        String path = pendingSavePath;
+        if (path != null) {
+            pendingSavePath = null;
+            saveWorkspace(path);
+        }
+    }
+
+    /**
+     * Open all windows of a workspace at once with placeholders, then decode the images in parallel
+     * and swap each one in as soon as it is ready.
+     */
+    private void loadWorkspace(String path, long startTime) {
+        if (!WorkspaceFile.isWorkspaceFile(path)) {
+            loadLegacyWorkspace(path);
+            return;
+        }
+        WorkspaceFile workspace;
+        List<WorkspaceFile.Entry> entries;
+        try {
+            workspace = WorkspaceFile.open(path);
+            entries = new ArrayList<>(workspace.getEntries());
+            WorkspaceJournal.replay(path, workspace.getGeneration(), entries);
         } catch (Exception e) {
             e.printStackTrace();
+            return;
+        }
+
+        closeAll();
+        List<ReferenceImage> windows = new ArrayList<>();
+        for (WorkspaceFile.Entry entry : entries) {
+            ReferenceImage image = new ReferenceImage(entry.width, entry.height, this::removeReferenceImage);
+            image.setImageHash(entry.hash);
+            image.setImageState(entry.state);
+            addReferenceImage(image);
+            if (windows.isEmpty()) {
+                PerfLog.elapsed("First workspace window", startTime);
+            }
+            windows.add(image);
+        }
+
+        // windows showing the same content share one decode and one pixel buffer
+        Map<Long, List<ReferenceImage>> windowsByBlob = new LinkedHashMap<>();
+        Map<Long, WorkspaceFile.Entry> blobs = new HashMap<>();
+        for (int i = 0; i < entries.size(); ++i) {
+            WorkspaceFile.Entry entry = entries.get(i);
+            long key = entry.hash != 0 ? entry.hash : -1 - i;
+            windowsByBlob.computeIfAbsent(key, k -> new ArrayList<>()).add(windows.get(i));
+            blobs.putIfAbsent(key, entry);
+        }
+
+        AtomicInteger remaining = new AtomicInteger(blobs.size());
+        if (blobs.isEmpty()) {
+            closeQuietly(workspace);
+            return;
+        }
+        for (Map.Entry<Long, List<ReferenceImage>> blob : windowsByBlob.entrySet()) {
+            WorkspaceFile.Entry entry = blobs.get(blob.getKey());
+            List<ReferenceImage> blobWindows = blob.getValue();
+            Runnable finished = () -> {
+                if (remaining.decrementAndGet() == 0) {
+                    closeQuietly(workspace);
+                    PerfLog.elapsed("Workspace restored", startTime);
+                    // after the images, which were handed to the EDT before
+                    SwingUtilities.invokeLater(this::savePendingWorkspace);
+                }
+            };
+            if (entry.codec == ImageCodec.RAW && (long) entry.width * entry.height > TileSource.FULL_DECODE_MAX_PIXELS) {
+                decoderPool.submit(() -> {
+                    try {
+                        restoreTiled(workspace, entry, blobWindows);
+                    } finally {
+                        finished.run();
+                    }
+                });
+                continue;
+            }
+            decoderPool.submit(() -> {
+                try {
+                    BufferedImage image = null;
+                    try {
+                        image = OffHeapImages.store(CompatibleImages.normalize(workspace.readImage(entry)));
+                        if (entry.hash != 0) {
+                            image = imageInterner.intern(image, entry.hash);
+                        }
+                    } catch (Throwable e) {
+                        // also out of heap or direct memory, the other images may still fit
+                        e.printStackTrace();
+                    }
+                    if (image == null) {
+                        restoreUnloaded(workspace, entry, blobWindows);
+                        return;
+                    }
+                    BufferedImage decoded = image;
+                    SwingUtilities.invokeLater(() -> {
+                        for (ReferenceImage window : blobWindows) {
+                            window.setImage(decoded);
+                        }
+                        memoryManager.structureChanged();
+                    });
+                } finally {
+                    finished.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Show a large raw image from an overview, each window reading full resolution tiles through its own source.
+     */
+    private void restoreTiled(WorkspaceFile workspace, WorkspaceFile.Entry entry, List<ReferenceImage> windows) {
+        List<TileSource> sources = new ArrayList<>();
+        BufferedImage overview = null;
+        try {
+            for (int i = 0; i < windows.size(); ++i) {
+                sources.add(workspace.openTileSource(entry));
+            }
+            long start = System.nanoTime();
+            overview = CompatibleImages.normalize(TileSource.createOverview(sources.get(0), TileSource.OVERVIEW_SIZE));
+            PerfLog.elapsed("Overview of " + entry.width + "x" + entry.height, start);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            sources.forEach(Main::closeQuietly);
+            restoreUnloaded(workspace, entry, windows);
+            return;
         }
+        showSources(overview, sources, windows);
     }
 
-    private void loadWorkspace(String path) {
+    /**
+     * Keep the windows of an image that could not be loaded, showing a grey placeholder. Saving them writes
+     * the original blob unchanged, so an image is not dropped from the workspace because it failed to load once.
+     * Only if even that fails are the windows closed.
+     */
+    private void restoreUnloaded(WorkspaceFile workspace, WorkspaceFile.Entry entry, List<ReferenceImage> windows) {
+        List<TileSource> sources = new ArrayList<>();
+        try {
+            for (int i = 0; i < windows.size(); ++i) {
+                sources.add(workspace.openPlaceholder(entry));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            sources.forEach(Main::closeQuietly);
+            SwingUtilities.invokeLater(() -> {
+                for (ReferenceImage window : windows) {
+                    window.close();
+                    removeReferenceImage(window);
+                }
+            });
+            return;
+        }
+        showSources(UNLOADED_OVERVIEW, sources, windows);
+    }
+
+    /**
+     * Swap in an overview with one tile source per window.
+     */
+    private void showSources(BufferedImage overview, List<TileSource> sources, List<ReferenceImage> windows) {
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < windows.size(); ++i) {
+                ReferenceImage window = windows.get(i);
+                if (!window.isDisplayable()) {
+                    // closed while loading
+                    closeQuietly(sources.get(i));
+                } else {
+                    window.setImage(overview, sources.get(i));
+                }
+            }
+        });
+    }
+
+    private static BufferedImage createUnloadedOverview() {
+        BufferedImage overview = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        overview.setRGB(0, 0, 0x808080);
+        return overview;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadLegacyWorkspace(String path) {
         try (FileInputStream f = new FileInputStream(path);
              ObjectInputStream is = new ObjectInputStream(f)
         ) {
@@ -246,13 +607,53 @@ public class Main {
             List<WorkspaceImage> workspace = (List<WorkspaceImage>) is.readObject();
             closeAll();
             for (WorkspaceImage record : workspace) {
-                ReferenceImage image = new ReferenceImage(record.image, this::removeReferenceImage);
+                ReferenceImage image = new ReferenceImage(CompatibleImages.normalize(record.image), this::removeReferenceImage);
                 image.setImageState(record.state);
-                referenceImageList.add(image);
+                addReferenceImage(image);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Hash of the screen in an area around the pointer, large enough for the whole tray menu.
+     */
+    private static class Grab {
+        final GraphicsDevice device;
+        final Rectangle area;
+        final long hash;
+
+        Grab(GraphicsDevice device, Rectangle area) throws AWTException {
+            this.device = device;
+            this.area = area;
+            this.hash = ImageUtils.hash(ScreenCapture.getRobot(device).createScreenCapture(area));
+        }
+
+        /**
+         * Null if the pointer is not on any screen.
+         */
+        static Grab aroundPointer() throws AWTException {
+            PointerInfo pointer = MouseInfo.getPointerInfo();
+            if (pointer == null) {
+                return null;
+            }
+            Point location = pointer.getLocation();
+            Rectangle area = new Rectangle(
+                    location.x - POPUP_AREA_WIDTH / 2,
+                    location.y - POPUP_AREA_HEIGHT / 2,
+                    POPUP_AREA_WIDTH,
+                    POPUP_AREA_HEIGHT
+            ).intersection(pointer.getDevice().getDefaultConfiguration().getBounds());
+            return new Grab(pointer.getDevice(), area);
+        }
+
+        /**
+         * The same area grabbed now.
+         */
+        Grab again() throws AWTException {
+            return new Grab(device, area);
+        }
+    }
+
 }
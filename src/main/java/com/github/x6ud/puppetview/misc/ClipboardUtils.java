@@ -1,6 +1,5 @@
 package com.github.x6ud.puppetview.misc;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
@@ -14,13 +13,17 @@ import java.util.List;
 
 public class ClipboardUtils {
 
-    public static List<BufferedImage> getImages() {
-        List<BufferedImage> ret = new ArrayList<>();
+    /**
+     * Images in the clipboard, or image files copied from a file manager.
+     * Large files only get an overview decoded, see {@link ImportedImage}.
+     */
+    public static List<ImportedImage> getImages() {
+        List<ImportedImage> ret = new ArrayList<>();
         try {
             Transferable transferable = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
             if (transferable != null) {
                 if (transferable.isDataFlavorSupported(DataFlavor.imageFlavor)) {
-                    ret.add(toBufferedImage((Image) transferable.getTransferData(DataFlavor.imageFlavor)));
+                    ret.add(new ImportedImage(toBufferedImage((Image) transferable.getTransferData(DataFlavor.imageFlavor)), null));
                 } else if (transferable.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
                     @SuppressWarnings("unchecked")
                     List<File> files = (List<File>) transferable.getTransferData(DataFlavor.javaFileListFlavor);
@@ -29,7 +32,7 @@ public class ClipboardUtils {
                             if (!file.isFile()) {
                                 continue;
                             }
-                            BufferedImage image = ImageIO.read(file);
+                            ImportedImage image = ImportedImage.read(file);
                             if (image != null) {
                                 ret.add(image);
                             }
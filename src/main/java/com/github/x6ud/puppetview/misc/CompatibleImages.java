@@ -0,0 +1,174 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Conversion of incoming images to the layout the screen is drawn from fastest.
+ * <p>
+ * Decoded files, clipboard content and captures come in whatever layout the decoder produced: indexed GIFs,
+ * 3-byte BGR JPEGs, 4-byte ABGR PNGs, custom color models. Java2D draws those through general loops on every
+ * paint, so each image is converted once, off the EDT, to the layout of
+ * {@link GraphicsConfiguration#createCompatibleImage(int, int, int)}: premultiplied ARGB for images with alpha
+ * and plain RGB for opaque ones on all common displays.
+ */
+public class CompatibleImages {
+
+    private static int translucentType = -1;
+    private static int opaqueType = -1;
+
+    /**
+     * The image itself if it already has the compatible layout, otherwise a converted copy.
+     * Copies with an int layout are created through {@link OffHeapImages}. Can be called on any thread.
+     */
+    public static BufferedImage normalize(BufferedImage image) {
+        boolean alpha = image.getColorModel().hasAlpha();
+        int type = ImageUtils.getEffectiveType(image);
+        int target = getCompatibleType(alpha);
+        if (type == target && type != BufferedImage.TYPE_CUSTOM) {
+            return image;
+        }
+        return convert(image, target);
+    }
+
+    /**
+     * Tightly sized copy of a region in the compatible layout. Unlike getSubimage, the result does not keep
+     * the pixels of the whole source alive. Can be called on any thread.
+     */
+    public static BufferedImage copy(BufferedImage image, Rectangle region) {
+        BufferedImage part = image.getSubimage(region.x, region.y, region.width, region.height);
+        return convert(part, getCompatibleType(image.getColorModel().hasAlpha()));
+    }
+
+    /**
+     * Short name of the pixel layout, for logging.
+     */
+    public static String describe(BufferedImage image) {
+        String name;
+        switch (ImageUtils.getEffectiveType(image)) {
+            case BufferedImage.TYPE_INT_RGB:
+                name = "INT_RGB";
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                name = "INT_ARGB";
+                break;
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                name = "INT_ARGB_PRE";
+                break;
+            case BufferedImage.TYPE_INT_BGR:
+                name = "INT_BGR";
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                name = "3BYTE_BGR";
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                name = "4BYTE_ABGR";
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                name = "4BYTE_ABGR_PRE";
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                name = "BYTE_GRAY";
+                break;
+            case BufferedImage.TYPE_USHORT_GRAY:
+                name = "USHORT_GRAY";
+                break;
+            case BufferedImage.TYPE_BYTE_BINARY:
+                name = "BYTE_BINARY";
+                break;
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                name = "BYTE_INDEXED";
+                break;
+            default:
+                name = "CUSTOM";
+                break;
+        }
+        return OffHeapImages.isOffHeap(image) ? name + " off-heap" : name;
+    }
+
+    /* ============================================== */
+
+    private static BufferedImage convert(BufferedImage image, int target) {
+        boolean alpha = image.getColorModel().hasAlpha();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage ret;
+        if (target == BufferedImage.TYPE_INT_RGB || target == BufferedImage.TYPE_INT_ARGB_PRE) {
+            ret = OffHeapImages.createImage(width, height, target);
+            WritableRaster out = ret.getRaster();
+            boolean premultiply = target == BufferedImage.TYPE_INT_ARGB_PRE;
+            ImageUtils.forEachRowBand(height, (from, to) -> {
+                int[] row = new int[width];
+                int[] samples = null;
+                for (int y = from; y < to; ++y) {
+                    samples = ImageUtils.readArgbRow(image, y, row, samples);
+                    if (premultiply) {
+                        premultiply(row);
+                    } else {
+                        clearAlpha(row);
+                    }
+                    out.setDataElements(0, y, width, 1, row);
+                }
+            });
+        } else {
+            ret = getConfiguration().createCompatibleImage(
+                    width, height, alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE
+            );
+            Graphics2D g = ret.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+        }
+        return ret;
+    }
+
+    private static GraphicsConfiguration getConfiguration() {
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    private static synchronized int getCompatibleType(boolean alpha) {
+        if (translucentType < 0) {
+            if (GraphicsEnvironment.isHeadless()) {
+                translucentType = BufferedImage.TYPE_INT_ARGB_PRE;
+                opaqueType = BufferedImage.TYPE_INT_RGB;
+            } else {
+                GraphicsConfiguration configuration = getConfiguration();
+                translucentType = configuration.createCompatibleImage(1, 1, Transparency.TRANSLUCENT).getType();
+                opaqueType = configuration.createCompatibleImage(1, 1, Transparency.OPAQUE).getType();
+            }
+        }
+        return alpha ? translucentType : opaqueType;
+    }
+
+    /**
+     * INT_RGB rasters store the int as it is, the unused byte must be 0 like in captures and decoded images.
+     */
+    private static void clearAlpha(int[] row) {
+        for (int x = 0; x < row.length; ++x) {
+            row[x] &= 0xffffff;
+        }
+    }
+
+    private static void premultiply(int[] row) {
+        for (int x = 0; x < row.length; ++x) {
+            int px = row[x];
+            int a = px >>> 24;
+            if (a == 255) {
+                continue;
+            }
+            if (a == 0) {
+                row[x] = 0;
+                continue;
+            }
+            row[x] = a << 24
+                    | (((px >> 16) & 0xff) * a + 127) / 255 << 16
+                    | (((px >> 8) & 0xff) * a + 127) / 255 << 8
+                    | ((px & 0xff) * a + 127) / 255;
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.github.x6ud.puppetview.misc;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Images derived from a source image (filtered copies, mipmaps and the like), shared by all windows
+ * and computed off the EDT.
+ * <p>
+ * Entries are keyed by the identity of the source and a kind string, hold their source only weakly,
+ * and are evicted least-recently-used once their pixels exceed the memory cap of the cache. The shared cache
+ * holds filtered copies (system property <code>puppetview.derivedCacheMB</code>, default 512),
+ * {@link ImagePyramid} keeps its levels in a cache of its own.
+ */
+public class DerivedImageCache {
+
+    private static final long DEFAULT_CAPACITY_MB = 512;
+    private static final int WORKER_THREADS = 2;
+
+    private static final DerivedImageCache shared = new DerivedImageCache(
+            Long.getLong("puppetview.derivedCacheMB", DEFAULT_CAPACITY_MB) * 1024 * 1024
+    );
+
+    public static DerivedImageCache getShared() {
+        return shared;
+    }
+
+    private static class Key {
+        final WeakReference<BufferedImage> source;
+        final int sourceHash;
+        final String kind;
+
+        Key(BufferedImage source, String kind) {
+            this.source = new WeakReference<>(source);
+            this.sourceHash = System.identityHashCode(source);
+            this.kind = kind;
+        }
+
+        boolean isStale() {
+            return source.get() == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            BufferedImage image = source.get();
+            return image != null && image == key.source.get() && kind.equals(key.kind);
+        }
+
+        @Override
+        public int hashCode() {
+            return sourceHash * 31 + kind.hashCode();
+        }
+    }
+
+    private final long capacity;
+    private final ExecutorService executor = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "derived-image");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by this
+    private final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, List<Runnable>> pending = new HashMap<>();
+    private long size = 0;
+
+    public DerivedImageCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get a derived image if it is ready. Otherwise start deriving it in the background, return null,
+     * and call <code>onReady</code> on the EDT once it can be fetched.
+     */
+    public synchronized BufferedImage get(BufferedImage source,
+                                          String kind,
+                                          Function<BufferedImage, BufferedImage> derive,
+                                          Runnable onReady) {
+        Key key = new Key(source, kind);
+        BufferedImage image = images.get(key);
+        if (image != null) {
+            return image;
+        }
+        List<Runnable> callbacks = pending.get(key);
+        if (callbacks != null) {
+            callbacks.add(onReady);
+            return null;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(onReady);
+        pending.put(key, callbacks);
+        executor.submit(() -> {
+            BufferedImage derived = null;
+            try {
+                derived = derive.apply(source);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            List<Runnable> done;
+            synchronized (this) {
+                done = pending.remove(key);
+                if (derived != null) {
+                    put(key, derived);
+                }
+            }
+            if (derived != null) {
+                SwingUtilities.invokeLater(() -> done.forEach(Runnable::run));
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Get a derived image only if it is already computed.
+     */
+    public synchronized BufferedImage peek(BufferedImage source, String kind) {
+        return images.get(new Key(source, kind));
+    }
+
+    private void put(Key key, BufferedImage image) {
+        images.put(key, image);
+        size += sizeOf(image);
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = images.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = iterator.next();
+            if (size <= capacity && !entry.getKey().isStale()) {
+                continue;
+            }
+            if (entry.getKey() == key) {
+                // never evict what was just computed
+                continue;
+            }
+            size -= sizeOf(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Immutable chain of value-study adjustments, applied in one fused pass over the image.
+ * <p>
+ * The order is fixed: saturation clamp, greyscale, levels, posterize, invert.
+ * Levels, posterize and invert are per-channel and are folded into a single 256-entry table,
+ * so any combination costs one read, one table lookup per channel and one write per pixel.
+ * Alpha is kept as it is.
+ * <p>
+ * A pipeline is described by a spec string such as <code>greyscale,levels=20-235,posterize=4</code>,
+ * which is what gets persisted. The empty spec is the identity.
+ */
+public final class FilterPipeline {
+
+    public static final FilterPipeline NONE = new FilterPipeline(false, false, 0, 255, 0, 100);
+
+    private final boolean greyscale;
+    private final boolean invert;
+    private final int levelsBlack;
+    private final int levelsWhite;
+    // number of output values per channel, 0 for off
+    private final int posterize;
+    // max HSV saturation in percent, 100 for off
+    private final int saturationLimit;
+
+    private final String spec;
+    private final int[] table;
+
+    private FilterPipeline(boolean greyscale,
+                           boolean invert,
+                           int levelsBlack,
+                           int levelsWhite,
+                           int posterize,
+                           int saturationLimit) {
+        this.greyscale = greyscale;
+        this.invert = invert;
+        this.levelsBlack = levelsBlack;
+        this.levelsWhite = levelsWhite;
+        this.posterize = posterize;
+        this.saturationLimit = saturationLimit;
+        this.spec = buildSpec();
+        this.table = buildTable();
+    }
+
+    /**
+     * Parse a spec written by {@link #getSpec()}. Unknown or malformed parts are ignored.
+     */
+    public static FilterPipeline parse(String spec) {
+        FilterPipeline pipeline = NONE;
+        if (spec == null || spec.isEmpty()) {
+            return pipeline;
+        }
+        for (String part : spec.split(",")) {
+            String name = part;
+            String value = null;
+            int eq = part.indexOf('=');
+            if (eq >= 0) {
+                name = part.substring(0, eq);
+                value = part.substring(eq + 1);
+            }
+            try {
+                switch (name.trim()) {
+                    case "greyscale":
+                        pipeline = pipeline.withGreyscale(true);
+                        break;
+                    case "invert":
+                        pipeline = pipeline.withInvert(true);
+                        break;
+                    case "levels": {
+                        String[] range = value.split("-");
+                        pipeline = pipeline.withLevels(Integer.parseInt(range[0].trim()), Integer.parseInt(range[1].trim()));
+                    }
+                    break;
+                    case "posterize":
+                        pipeline = pipeline.withPosterize(Integer.parseInt(value.trim()));
+                        break;
+                    case "saturation":
+                        pipeline = pipeline.withSaturationLimit(Integer.parseInt(value.trim()));
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // skip the malformed part
+            }
+        }
+        return pipeline;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    public boolean isIdentity() {
+        return spec.isEmpty();
+    }
+
+    public boolean isGreyscale() {
+        return greyscale;
+    }
+
+    public boolean isInvert() {
+        return invert;
+    }
+
+    public int getLevelsBlack() {
+        return levelsBlack;
+    }
+
+    public int getLevelsWhite() {
+        return levelsWhite;
+    }
+
+    public int getPosterize() {
+        return posterize;
+    }
+
+    public int getSaturationLimit() {
+        return saturationLimit;
+    }
+
+    public FilterPipeline withGreyscale(boolean greyscale) {
+        return new FilterPipeline(greyscale, invert, levelsBlack, levelsWhite, posterize, saturationLimit);
+    }
+
+    public FilterPipeline withInvert(boolean invert) {
+        return new FilterPipeline(greyscale, invert, levelsBlack, levelsWhite, posterize, saturationLimit);
+    }
+
+    /**
+     * Map input values <code>black..white</code> to the full range. 0-255 is off.
+     */
+    public FilterPipeline withLevels(int black, int white) {
+        black = Math.max(0, Math.min(254, black));
+        white = Math.max(black + 1, Math.min(255, white));
+        return new FilterPipeline(greyscale, invert, black, white, posterize, saturationLimit);
+    }
+
+    /**
+     * Reduce each channel to the given number of evenly spaced values. 0 is off.
+     */
+    public FilterPipeline withPosterize(int levels) {
+        levels = levels < 2 ? 0 : Math.min(256, levels);
+        return new FilterPipeline(greyscale, invert, levelsBlack, levelsWhite, levels == 256 ? 0 : levels, saturationLimit);
+    }
+
+    /**
+     * Limit HSV saturation to the given percentage, keeping hue and value. 100 is off.
+     */
+    public FilterPipeline withSaturationLimit(int percent) {
+        percent = Math.max(0, Math.min(100, percent));
+        return new FilterPipeline(greyscale, invert, levelsBlack, levelsWhite, posterize, percent);
+    }
+
+    /**
+     * Filtered copy of the image, INT_ARGB if the source has alpha and INT_RGB otherwise.
+     * Rows are processed in parallel bands.
+     */
+    public BufferedImage apply(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        BufferedImage ret = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        WritableRaster out = ret.getRaster();
+        boolean clampSaturation = saturationLimit < 100;
+        int[] table = this.table;
+        ImageUtils.forEachRowBand(height, (from, to) -> {
+            int[] row = new int[width];
+            int[] samples = null;
+            for (int y = from; y < to; ++y) {
+                samples = ImageUtils.readArgbRow(img, y, row, samples);
+                for (int x = 0; x < width; ++x) {
+                    int px = row[x];
+                    int r = (px >> 16) & 0xff;
+                    int g = (px >> 8) & 0xff;
+                    int b = px & 0xff;
+                    if (clampSaturation) {
+                        int max = Math.max(r, Math.max(g, b));
+                        int chroma = max - Math.min(r, Math.min(g, b));
+                        int allowed = max * saturationLimit / 100;
+                        if (chroma > allowed) {
+                            // pull the other channels towards the max so that (max - min) / max == limit
+                            r = max - (max - r) * allowed / chroma;
+                            g = max - (max - g) * allowed / chroma;
+                            b = max - (max - b) * allowed / chroma;
+                        }
+                    }
+                    if (greyscale) {
+                        r = g = b = ImageUtils.greyLevel(r << 16 | g << 8 | b);
+                    }
+                    row[x] = px & 0xff000000 | table[r] << 16 | table[g] << 8 | table[b];
+                }
+                out.setDataElements(0, y, width, 1, row);
+            }
+        });
+        return ret;
+    }
+
+    /* ============================================== */
+
+    private String buildSpec() {
+        StringBuilder sb = new StringBuilder();
+        if (saturationLimit < 100) {
+            sb.append(",saturation=").append(saturationLimit);
+        }
+        if (greyscale) {
+            sb.append(",greyscale");
+        }
+        if (levelsBlack != 0 || levelsWhite != 255) {
+            sb.append(",levels=").append(levelsBlack).append('-').append(levelsWhite);
+        }
+        if (posterize != 0) {
+            sb.append(",posterize=").append(posterize);
+        }
+        if (invert) {
+            sb.append(",invert");
+        }
+        return sb.length() == 0 ? "" : sb.substring(1);
+    }
+
+    /**
+     * Levels, posterize and invert folded into one lookup table.
+     */
+    private int[] buildTable() {
+        int[] table = new int[256];
+        int range = levelsWhite - levelsBlack;
+        for (int v = 0; v < 256; ++v) {
+            int value = Math.max(0, Math.min(255, ((v - levelsBlack) * 255 + range / 2) / range));
+            if (posterize != 0) {
+                int step = (value * (posterize - 1) + 127) / 255;
+                value = (step * 255 + (posterize - 1) / 2) / (posterize - 1);
+            }
+            if (invert) {
+                value = 255 - value;
+            }
+            table[v] = value;
+        }
+        return table;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterPipeline && ((FilterPipeline) o).spec.equals(spec);
+    }
+
+    @Override
+    public int hashCode() {
+        return spec.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+}
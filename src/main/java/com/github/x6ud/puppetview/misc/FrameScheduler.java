@@ -0,0 +1,60 @@
+package com.github.x6ud.puppetview.misc;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs tasks on the EDT at most once per display frame.
+ * <p>
+ * Scheduling a task that is already pending does nothing, so any number of changes made within a frame
+ * are applied by a single run. The first request after an idle period runs without waiting.
+ */
+public class FrameScheduler {
+
+    private static final int FRAME_MS = 16;
+
+    private static final Object lock = new Object();
+    // guarded by lock
+    private static final Set<Runnable> pending = new LinkedHashSet<>();
+    private static long lastFlushTime = 0;
+    private static final Timer timer = new Timer(FRAME_MS, e -> flush());
+
+    static {
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Run the task on the EDT with the next frame. May be called from any thread.
+     */
+    public static void schedule(Runnable task) {
+        synchronized (lock) {
+            if (!pending.add(task) || pending.size() > 1) {
+                // the timer is already started
+                return;
+            }
+            long wait = FRAME_MS - (System.currentTimeMillis() - lastFlushTime);
+            timer.setInitialDelay((int) Math.max(0, Math.min(FRAME_MS, wait)));
+            timer.restart();
+        }
+    }
+
+    private static void flush() {
+        List<Runnable> tasks;
+        synchronized (lock) {
+            tasks = new ArrayList<>(pending);
+            pending.clear();
+            lastFlushTime = System.currentTimeMillis();
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.github.x6ud.puppetview.misc;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes regions of an image file with {@link ImageReadParam} source regions and subsampling.
+ * Every read opens its own reader, so reads can run concurrently.
+ */
+public class ImageFileTileSource implements TileSource {
+
+    private final File file;
+    private final int width;
+    private final int height;
+
+    private ImageFileTileSource(File file, int width, int height) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Read the dimensions from the file header without decoding any pixels.
+     *
+     * @return null if no reader can decode the file
+     */
+    public static ImageFileTileSource open(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = createReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(in, true, true);
+                return new ImageFileTileSource(file, reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = createReader(in);
+            if (reader == null) {
+                throw new IOException("No image reader for " + file);
+            }
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Hash of the file bytes. Reading the file once is much cheaper than decoding all of it again in strips,
+     * and the same file always gives the same hash.
+     */
+    @Override
+    public long hash() throws IOException {
+        return ImageUtils.hashFile(file);
+    }
+
+    private static ImageReader createReader(ImageInputStream in) {
+        if (in == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+}
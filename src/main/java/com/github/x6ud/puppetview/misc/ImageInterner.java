@@ -0,0 +1,46 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shares one pixel buffer between all windows showing the same content.
+ * Images are looked up by {@link ImageUtils#hash(BufferedImage)} and only weakly held,
+ * so an image is dropped once the last window showing it is closed. A known image is only shared after
+ * its pixels were compared, a hash collision must not show one image's pixels in another window.
+ */
+public class ImageInterner {
+
+    private final Map<Long, WeakReference<BufferedImage>> images = new HashMap<>();
+
+    /**
+     * Return the already known image with the same content, or register this one.
+     */
+    public synchronized BufferedImage intern(BufferedImage image, long hash) {
+        WeakReference<BufferedImage> ref = images.get(hash);
+        BufferedImage known = ref != null ? ref.get() : null;
+        if (known != null
+                && known.getWidth() == image.getWidth()
+                && known.getHeight() == image.getHeight()
+                && ImageUtils.getEffectiveType(known) == ImageUtils.getEffectiveType(image)
+                && ImageUtils.samePixels(known, image)) {
+            return known;
+        }
+        purge();
+        images.put(hash, new WeakReference<>(image));
+        return image;
+    }
+
+    private void purge() {
+        Iterator<WeakReference<BufferedImage>> iterator = images.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().get() == null) {
+                iterator.remove();
+            }
+        }
+    }
+
+}
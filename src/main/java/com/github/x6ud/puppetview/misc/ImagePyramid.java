@@ -0,0 +1,64 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Lazily built mipmaps of an image. Level <code>n</code> is the image box-filtered down by <code>2^n</code>.
+ * <p>
+ * Levels live in a {@link DerivedImageCache} of their own, so they are computed off the EDT and shared by windows
+ * showing the same image. Its memory cap (system property <code>puppetview.mipmapCacheMB</code>, default 256)
+ * is separate from the one of filtered copies, so the levels on screen are not evicted and rebuilt just because
+ * filtered copies of other windows were computed.
+ */
+public class ImagePyramid {
+
+    private static final long DEFAULT_CAPACITY_MB = 256;
+    private static final String KIND_PREFIX = "mipmap:";
+    // keeps the box filter factor within what ImageUtils.downsample supports
+    private static final int MAX_LEVEL = 14;
+
+    private static final DerivedImageCache cache = new DerivedImageCache(
+            Long.getLong("puppetview.mipmapCacheMB", DEFAULT_CAPACITY_MB) * 1024 * 1024
+    );
+
+    /**
+     * The smallest level that is still at least as large as the image drawn at the given scale,
+     * so drawing it only ever scales down by less than half. 0 means the image itself.
+     */
+    public static int levelFor(BufferedImage image, double scale) {
+        int level = 0;
+        while (scale <= 0.5
+                && level < MAX_LEVEL
+                && image.getWidth() >> (level + 1) > 0
+                && image.getHeight() >> (level + 1) > 0) {
+            scale *= 2;
+            ++level;
+        }
+        return level;
+    }
+
+    /**
+     * Get a level if it is ready. Otherwise start building it, return null,
+     * and call <code>onReady</code> on the EDT once it can be fetched.
+     */
+    public static BufferedImage get(BufferedImage image, int level, Runnable onReady) {
+        if (level == 0) {
+            return image;
+        }
+        return cache.get(image, KIND_PREFIX + level, source -> build(source, level), onReady);
+    }
+
+    /**
+     * Downsample from the finest level already in the cache rather than from the full image where possible.
+     */
+    private static BufferedImage build(BufferedImage image, int level) {
+        for (int finer = level - 1; finer > 0; --finer) {
+            BufferedImage source = cache.peek(image, KIND_PREFIX + finer);
+            if (source != null) {
+                return ImageUtils.downsample(source, 1 << (level - finer));
+            }
+        }
+        return ImageUtils.downsample(image, 1 << level);
+    }
+
+}
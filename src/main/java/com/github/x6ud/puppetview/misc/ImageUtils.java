@@ -1,30 +1,434 @@
 package com.github.x6ud.puppetview.misc;
 
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageUtils {
 
-    // https://stackoverflow.com/questions/9131678/convert-a-rgb-image-to-grayscale-image-reducing-the-memory-in-java
-    public static BufferedImage greyScale(BufferedImage img) {
-        BufferedImage ret = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_BGR);
-        for (int x = 0; x < img.getWidth(); ++x)
-            for (int y = 0; y < img.getHeight(); ++y) {
-                int rgb = img.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = (rgb & 0xFF);
+    // rows per fork-join task
+    private static final int ROW_BAND_HEIGHT = 64;
 
-                double rr = Math.pow(r / 255.0, 2.2);
-                double gg = Math.pow(g / 255.0, 2.2);
-                double bb = Math.pow(b / 255.0, 2.2);
+    private static final double GAMMA = 2.2;
+    // 0.2126 * (r / 255) ^ 2.2 etc., evaluated exactly like the reference formula
+    private static final double[] LINEAR_R = new double[256];
+    private static final double[] LINEAR_G = new double[256];
+    private static final double[] LINEAR_B = new double[256];
+    // GREY_THRESHOLDS[k] is the smallest luminance that maps to grey level k
+    private static final double[] GREY_THRESHOLDS = new double[257];
+    // grey level at the lower end of each luminance bucket, the lookup starts there
+    private static final int LUMINANCE_BUCKETS = 4096;
+    private static final int[] BUCKET_GREY = new int[LUMINANCE_BUCKETS + 1];
 
-                double lum = 0.2126 * rr + 0.7152 * gg + 0.0722 * bb;
+    static {
+        for (int i = 0; i < 256; ++i) {
+            double linear = Math.pow(i / 255.0, GAMMA);
+            LINEAR_R[i] = 0.2126 * linear;
+            LINEAR_G[i] = 0.7152 * linear;
+            LINEAR_B[i] = 0.0722 * linear;
+        }
+        for (int k = 1; k <= 255; ++k) {
+            GREY_THRESHOLDS[k] = findGreyThreshold(k);
+        }
+        GREY_THRESHOLDS[256] = Double.POSITIVE_INFINITY;
+        for (int b = 0, k = 0; b <= LUMINANCE_BUCKETS; ++b) {
+            double lum = (double) b / LUMINANCE_BUCKETS;
+            while (lum >= GREY_THRESHOLDS[k + 1]) {
+                ++k;
+            }
+            BUCKET_GREY[b] = k;
+        }
+    }
+
+    /**
+     * Gamma-correct grey level of an 0xRRGGBB color, as used by the greyscale filter of {@link FilterPipeline}.
+     * <p>
+     * Gives exactly the same result as the straightforward per-pixel
+     * <code>(int) (255 * pow(0.2126 * pow(r / 255, 2.2) + 0.7152 * ... , 1 / 2.2))</code>
+     * (see https://stackoverflow.com/questions/9131678/convert-a-rgb-image-to-grayscale-image-reducing-the-memory-in-java),
+     * but the forward curve comes from tables and the inverse curve from a threshold search, so there is no
+     * pow call per pixel.
+     */
+    public static int greyLevel(int rgb) {
+        return greyLevelOfLuminance(LINEAR_R[(rgb >> 16) & 0xff] + LINEAR_G[(rgb >> 8) & 0xff] + LINEAR_B[rgb & 0xff]);
+    }
+
+    private static int greyLevelOfLuminance(double lum) {
+        int k = BUCKET_GREY[Math.min(LUMINANCE_BUCKETS, (int) (lum * LUMINANCE_BUCKETS))];
+        while (lum >= GREY_THRESHOLDS[k + 1]) {
+            ++k;
+        }
+        return k;
+    }
+
+    /**
+     * Binary search over the bit patterns of non-negative doubles, which are ordered like the doubles.
+     * Math.pow is semi-monotonic, so the result is exact.
+     */
+    private static double findGreyThreshold(int k) {
+        long lo = 0;
+        long hi = Double.doubleToLongBits(2.0);
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if ((int) (255.0 * Math.pow(Double.longBitsToDouble(mid), 1.0 / GAMMA)) >= k) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return Double.longBitsToDouble(lo);
+    }
+
+    /**
+     * Read one row as 0xAARRGGBB ints, the same values getRGB would give.
+     * Common layouts are read through the raster without color model conversion.
+     *
+     * @param samples scratch buffer, may be null
+     * @return the scratch buffer to pass in for the next row
+     */
+    public static int[] readArgbRow(BufferedImage img, int y, int[] row, int[] samples) {
+        int width = row.length;
+        WritableRaster raster = img.getRaster();
+        switch (getEffectiveType(img)) {
+            case BufferedImage.TYPE_INT_ARGB:
+                raster.getDataElements(0, y, width, 1, row);
+                return samples;
+            case BufferedImage.TYPE_INT_RGB:
+                raster.getDataElements(0, y, width, 1, row);
+                for (int x = 0; x < width; ++x) {
+                    row[x] |= 0xff000000;
+                }
+                return samples;
+            case BufferedImage.TYPE_INT_BGR:
+                raster.getDataElements(0, y, width, 1, row);
+                for (int x = 0; x < width; ++x) {
+                    int px = row[x];
+                    row[x] = 0xff000000 | (px & 0xff) << 16 | px & 0xff00 | (px >> 16) & 0xff;
+                }
+                return samples;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                samples = raster.getPixels(0, y, width, 1, samples);
+                for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                    row[x] = 0xff000000 | samples[i] << 16 | samples[i + 1] << 8 | samples[i + 2];
+                }
+                return samples;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                samples = raster.getPixels(0, y, width, 1, samples);
+                for (int x = 0, i = 0; x < width; ++x, i += 4) {
+                    row[x] = samples[i + 3] << 24 | samples[i] << 16 | samples[i + 1] << 8 | samples[i + 2];
+                }
+                return samples;
+            default:
+                img.getRGB(0, y, width, 1, row, 0, width);
+                return samples;
+        }
+    }
+
+    /**
+     * Box-filtered copy reduced by an integer factor in both directions, rounding the size up.
+     * Each output pixel is the alpha-weighted average of its block, so edges of transparent regions don't darken.
+     * Factors up to 16384 are supported (one row of a block is summed in ints).
+     * The result is INT_ARGB if the source has alpha and INT_RGB otherwise.
+     */
+    public static BufferedImage downsample(BufferedImage img, int factor) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int outWidth = (width + factor - 1) / factor;
+        int outHeight = (height + factor - 1) / factor;
+        boolean alpha = img.getColorModel().hasAlpha();
+        BufferedImage ret = new BufferedImage(outWidth, outHeight, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        WritableRaster out = ret.getRaster();
+        forEachRowBand(outHeight, (from, to) -> {
+            int[] row = new int[width];
+            int[] samples = null;
+            int[] result = new int[outWidth];
+            long[] sumA = new long[outWidth];
+            long[] sumR = new long[outWidth];
+            long[] sumG = new long[outWidth];
+            long[] sumB = new long[outWidth];
+            for (int oy = from; oy < to; ++oy) {
+                java.util.Arrays.fill(sumA, 0);
+                java.util.Arrays.fill(sumR, 0);
+                java.util.Arrays.fill(sumG, 0);
+                java.util.Arrays.fill(sumB, 0);
+                int y0 = oy * factor;
+                int y1 = Math.min(height, y0 + factor);
+                for (int y = y0; y < y1; ++y) {
+                    samples = readArgbRow(img, y, row, samples);
+                    for (int ox = 0, x = 0; ox < outWidth; ++ox) {
+                        int blockEnd = Math.min(width, x + factor);
+                        int a = 0, r = 0, g = 0, b = 0;
+                        for (; x < blockEnd; ++x) {
+                            int px = row[x];
+                            int pa = px >>> 24;
+                            a += pa;
+                            r += ((px >> 16) & 0xff) * pa;
+                            g += ((px >> 8) & 0xff) * pa;
+                            b += (px & 0xff) * pa;
+                        }
+                        sumA[ox] += a;
+                        sumR[ox] += r;
+                        sumG[ox] += g;
+                        sumB[ox] += b;
+                    }
+                }
+                int rows = y1 - y0;
+                for (int ox = 0; ox < outWidth; ++ox) {
+                    long a = sumA[ox];
+                    if (a == 0) {
+                        result[ox] = 0;
+                        continue;
+                    }
+                    int count = rows * (Math.min(width, (ox + 1) * factor) - ox * factor);
+                    result[ox] = (int) ((a + count / 2) / count) << 24
+                            | (int) ((sumR[ox] + a / 2) / a) << 16
+                            | (int) ((sumG[ox] + a / 2) / a) << 8
+                            | (int) ((sumB[ox] + a / 2) / a);
+                }
+                out.setDataElements(0, oy, outWidth, 1, result);
+            }
+        });
+        return ret;
+    }
 
-                int grayLevel = (int) (255.0 * Math.pow(lum, 1.0 / 2.2));
-                int gray = (grayLevel << 16) + (grayLevel << 8) + grayLevel;
-                ret.setRGB(x, y, gray);
+    /**
+     * Opaque copy that looks like the image covered by black of the given alpha (0 - 255),
+     * computed over the raster rows with a lookup table instead of alpha compositing.
+     */
+    public static BufferedImage dim(BufferedImage img, int alpha) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] table = new int[256];
+        for (int i = 0; i < 256; ++i) {
+            table[i] = (i * (255 - alpha) + 127) / 255;
+        }
+        BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        WritableRaster out = ret.getRaster();
+        forEachRowBand(height, (from, to) -> {
+            int[] row = new int[width];
+            int[] samples = null;
+            for (int y = from; y < to; ++y) {
+                samples = readArgbRow(img, y, row, samples);
+                for (int x = 0; x < width; ++x) {
+                    int px = row[x];
+                    row[x] = table[(px >> 16) & 0xff] << 16 | table[(px >> 8) & 0xff] << 8 | table[px & 0xff];
+                }
+                out.setDataElements(0, y, width, 1, row);
             }
+        });
         return ret;
     }
 
+    public interface RowBandAction {
+        void run(int fromRow, int toRow);
+    }
+
+    /**
+     * Run the action over bands of rows in parallel on the common fork-join pool and wait for all of them.
+     */
+    public static void forEachRowBand(int height, RowBandAction action) {
+        ForkJoinPool.commonPool().invoke(new RowBandTask(0, height, action));
+    }
+
+    private static class RowBandTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final RowBandAction action;
+
+        RowBandTask(int from, int to, RowBandAction action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROW_BAND_HEIGHT) {
+                action.run(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowBandTask(from, mid, action), new RowBandTask(mid, to, action));
+            }
+        }
+    }
+
+    /**
+     * 64-bit hash of the pixel content. Never returns 0, so 0 can be used as "unknown".
+     * Int rasters are read a row at a time with getDataElements, which copies without un-managing the image;
+     * other layouts fall back to row-wise getRGB.
+     */
+    public static long hash(BufferedImage img) {
+        long h = hashHeader(img, img.getWidth(), img.getHeight());
+        h = hashRows(h, img);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Same as {@link #hash(BufferedImage)} of the whole image, read from a tile source in strips,
+     * so only a strip of rows is in memory at a time.
+     */
+    public static long hash(TileSource source) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int stripHeight = TileSource.getStripHeight(width);
+        long h = 0;
+        for (int y = 0; y < height; y += stripHeight) {
+            BufferedImage strip = source.read(new Rectangle(0, y, width, Math.min(stripHeight, height - y)), 1);
+            if (y == 0) {
+                h = hashHeader(strip, width, height);
+            }
+            h = hashRows(h, strip);
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Whether two images have the same size and pixels. Int rasters of the same layout are compared as stored,
+     * ignoring the unused byte of INT_RGB like {@link #hash(BufferedImage)}, anything else by its ARGB values.
+     * Used to make sure content with the same hash really is the same before sharing it.
+     */
+    public static boolean samePixels(BufferedImage a, BufferedImage b) {
+        if (a == b) {
+            return true;
+        }
+        int width = a.getWidth();
+        int height = a.getHeight();
+        if (width != b.getWidth() || height != b.getHeight()) {
+            return false;
+        }
+        int type = getEffectiveType(a);
+        boolean stored = isIntRgb(a) && type == getEffectiveType(b);
+        int mask = stored && type == BufferedImage.TYPE_INT_RGB ? 0xffffff : 0xffffffff;
+        AtomicBoolean same = new AtomicBoolean(true);
+        forEachRowBand(height, (from, to) -> {
+            int[] rowA = new int[width];
+            int[] rowB = new int[width];
+            int[] samplesA = null;
+            int[] samplesB = null;
+            for (int y = from; y < to && same.get(); ++y) {
+                if (stored) {
+                    a.getRaster().getDataElements(0, y, width, 1, rowA);
+                    b.getRaster().getDataElements(0, y, width, 1, rowB);
+                } else {
+                    samplesA = readArgbRow(a, y, rowA, samplesA);
+                    samplesB = readArgbRow(b, y, rowB, samplesB);
+                }
+                for (int x = 0; x < width; ++x) {
+                    if (((rowA[x] ^ rowB[x]) & mask) != 0) {
+                        same.set(false);
+                        return;
+                    }
+                }
+            }
+        });
+        return same.get();
+    }
+
+    /**
+     * Hash of the bytes of a file. Never equal to the hash of pixels, except by chance.
+     */
+    public static long hashFile(File file) throws IOException {
+        long h = mix(0x84222325cbf29ce4L, 0x46494c45); // "FILE"
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            long length = 0;
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                length += buffer.remaining();
+                while (buffer.remaining() >= 4) {
+                    h = mix(h, buffer.getInt());
+                }
+                buffer.compact();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                h = mix(h, buffer.get());
+            }
+            h = mix(h, (int) length);
+            h = mix(h, (int) (length >>> 32));
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Whether the raster holds one packed int per pixel in the default RGB layout.
+     */
+    public static boolean isIntRgb(BufferedImage img) {
+        switch (getEffectiveType(img)) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Same as getType(), except that custom images with one packed int per pixel in the default RGB layout,
+     * such as those from {@link OffHeapImages}, report the int type they are equivalent to.
+     */
+    public static int getEffectiveType(BufferedImage img) {
+        int type = img.getType();
+        if (type != BufferedImage.TYPE_CUSTOM
+                || !(img.getColorModel() instanceof DirectColorModel)
+                || !(img.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || img.getSampleModel().getTransferType() != DataBuffer.TYPE_INT) {
+            return type;
+        }
+        DirectColorModel colorModel = (DirectColorModel) img.getColorModel();
+        if (!colorModel.getColorSpace().isCS_sRGB()
+                || colorModel.getRedMask() != 0xff0000
+                || colorModel.getGreenMask() != 0xff00
+                || colorModel.getBlueMask() != 0xff) {
+            return type;
+        }
+        int[] masks = ((SinglePixelPackedSampleModel) img.getSampleModel()).getBitMasks();
+        if (!colorModel.hasAlpha()) {
+            return masks.length == 3 ? BufferedImage.TYPE_INT_RGB : type;
+        }
+        if (colorModel.getAlphaMask() != 0xff000000 || masks.length != 4 || masks[3] != 0xff000000) {
+            return type;
+        }
+        return colorModel.isAlphaPremultiplied() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_ARGB;
+    }
+
+    private static long hashHeader(BufferedImage img, int width, int height) {
+        long h = 0xcbf29ce484222325L;
+        h = mix(h, getEffectiveType(img));
+        h = mix(h, width);
+        return mix(h, height);
+    }
+
+    private static long hashRows(long h, BufferedImage img) {
+        int width = img.getWidth();
+        int[] row = new int[width];
+        boolean intRaster = isIntRgb(img);
+        // the unused top byte of INT_RGB pixels is not part of the content
+        int mask = getEffectiveType(img) == BufferedImage.TYPE_INT_RGB ? 0xffffff : 0xffffffff;
+        for (int y = 0; y < img.getHeight(); ++y) {
+            if (intRaster) {
+                img.getRaster().getDataElements(0, y, width, 1, row);
+            } else {
+                img.getRGB(0, y, width, 1, row, 0, width);
+            }
+            for (int px : row) {
+                h = mix(h, px & mask);
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        h = (h ^ value) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
 }
@@ -0,0 +1,50 @@
+package com.github.x6ud.puppetview.misc;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An image read from a file for a new window.
+ * <p>
+ * Files of up to {@link TileSource#FULL_DECODE_MAX_PIXELS} are decoded whole. Larger ones are only
+ * decoded with source subsampling into an overview of at most {@link TileSource#OVERVIEW_SIZE} pixels, and the
+ * full resolution is decoded region by region when the window is zoomed in past it.
+ */
+public class ImportedImage {
+
+    /**
+     * The whole image, or an overview if {@link #tileSource} is not null.
+     */
+    public final BufferedImage image;
+    public final TileSource tileSource;
+
+    public ImportedImage(BufferedImage image, TileSource tileSource) {
+        this.image = image;
+        this.tileSource = tileSource;
+    }
+
+    /**
+     * @return null if the file is not a readable image
+     */
+    public static ImportedImage read(File file) throws IOException {
+        ImageFileTileSource source = ImageFileTileSource.open(file);
+        if (source == null) {
+            return null;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if ((long) width * height <= TileSource.FULL_DECODE_MAX_PIXELS) {
+            BufferedImage image = ImageIO.read(file);
+            return image != null ? new ImportedImage(image, null) : null;
+        }
+        long start = System.nanoTime();
+        int subsampling = (Math.max(width, height) + TileSource.OVERVIEW_SIZE - 1) / TileSource.OVERVIEW_SIZE;
+        BufferedImage overview = source.read(new Rectangle(0, 0, width, height), subsampling);
+        PerfLog.elapsed("Subsampled decode of " + file.getName() + " " + width + "x" + height, start);
+        return new ImportedImage(overview, source);
+    }
+
+}
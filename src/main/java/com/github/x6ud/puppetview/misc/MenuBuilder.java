@@ -68,6 +68,15 @@ public class MenuBuilder {
             ));
             return this;
         }
+
+        /**
+         * Check the item with the given value without calling the callback.
+         */
+        public void setValue(String value) {
+            for (RadioMenuItem item : items) {
+                item.menuItem.setState(item.value.equals(value));
+            }
+        }
     }
 
     public static RadioGroup radioGroup(Menu menu, String value, Consumer<String> callback) {
@@ -0,0 +1,312 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optional storage of large images outside the Java heap
+ * (system property <code>puppetview.offHeapPixels</code>: <code>direct</code> or <code>mapped</code>, default off).
+ * <p>
+ * The pixels are packed ints in a direct or memory-mapped temp file {@link IntBuffer}, wrapped in a
+ * {@link DataBuffer} with the default RGB sample model. Such images are ordinary BufferedImages of type
+ * TYPE_CUSTOM, and {@link ImageUtils#getEffectiveType(BufferedImage)} reports the int type they are equivalent to.
+ * Direct buffers count against <code>-XX:MaxDirectMemorySize</code>, mapped files only against the page cache.
+ * If neither can be had, images fall back to the heap.
+ * <p>
+ * Mapped temp files are unlinked right away where the OS allows it. Elsewhere they are deleted once their
+ * buffer has been collected, and files left behind by a crash are swept by {@link #deleteStaleFiles()}.
+ */
+public class OffHeapImages {
+
+    private enum Mode {
+        HEAP, DIRECT, MAPPED
+    }
+
+    private static final Mode MODE = parseMode(System.getProperty("puppetview.offHeapPixels"));
+    // smaller images are not worth a buffer of their own
+    private static final long MIN_PIXELS = 512 * 512;
+    private static final String TEMP_PREFIX = "puppetview-pixels";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // files this young may belong to another instance that is just mapping them
+    private static final long STALE_FILE_AGE_MS = 60 * 1000;
+    private static final long DELETE_RETRY_MS = 10 * 1000;
+
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    // guarded by itself, keeps the references reachable until their files are deleted
+    private static final Set<MappedFile> mappedFiles = new HashSet<>();
+    private static Thread cleaner;
+
+    private static Mode parseMode(String value) {
+        if ("direct".equalsIgnoreCase(value)) {
+            return Mode.DIRECT;
+        }
+        if ("mapped".equalsIgnoreCase(value)) {
+            return Mode.MAPPED;
+        }
+        return Mode.HEAP;
+    }
+
+    public static boolean isEnabled() {
+        return MODE != Mode.HEAP;
+    }
+
+    /**
+     * A new image of type INT_RGB, INT_ARGB or INT_ARGB_PRE, or its off-heap equivalent if enabled.
+     */
+    public static BufferedImage createImage(int width, int height, int type) {
+        if (MODE == Mode.HEAP || (long) width * height < MIN_PIXELS) {
+            return new BufferedImage(width, height, type);
+        }
+        IntBuffer pixels;
+        try {
+            pixels = allocate((long) width * height);
+        } catch (OutOfMemoryError | UncheckedIOException e) {
+            // out of direct memory or temp space, the heap may still have room
+            e.printStackTrace();
+            return new BufferedImage(width, height, type);
+        }
+        return wrap(width, height, type, pixels);
+    }
+
+    /**
+     * Move an image off the heap if enabled. Images already off the heap, small images and
+     * anything when disabled are returned as they are.
+     */
+    public static BufferedImage store(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (MODE == Mode.HEAP
+                || (long) width * height < MIN_PIXELS
+                || isOffHeap(image)) {
+            return image;
+        }
+        int sourceType = ImageUtils.getEffectiveType(image);
+        int type;
+        if (sourceType == BufferedImage.TYPE_INT_RGB
+                || sourceType == BufferedImage.TYPE_INT_ARGB
+                || sourceType == BufferedImage.TYPE_INT_ARGB_PRE) {
+            type = sourceType;
+        } else {
+            type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        }
+        IntBuffer pixels;
+        try {
+            pixels = allocate((long) width * height);
+        } catch (OutOfMemoryError | UncheckedIOException e) {
+            // out of direct memory or temp space, the heap copy still works
+            e.printStackTrace();
+            return image;
+        }
+        boolean sameLayout = type == sourceType;
+        ImageUtils.forEachRowBand(height, (from, to) -> {
+            IntBuffer target = pixels.duplicate();
+            int[] row = new int[width];
+            int[] samples = null;
+            for (int y = from; y < to; ++y) {
+                if (sameLayout) {
+                    image.getRaster().getDataElements(0, y, width, 1, row);
+                } else {
+                    samples = ImageUtils.readArgbRow(image, y, row, samples);
+                    if (type == BufferedImage.TYPE_INT_RGB) {
+                        for (int x = 0; x < width; ++x) {
+                            row[x] &= 0xffffff;
+                        }
+                    }
+                }
+                target.position(y * width);
+                target.put(row);
+            }
+        });
+        return wrap(width, height, type, pixels);
+    }
+
+    /**
+     * Delete the mapped temp files a crashed or killed instance left behind. Does file IO, call it off the EDT.
+     */
+    public static void deleteStaleFiles() {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        long before = System.currentTimeMillis() - STALE_FILE_AGE_MS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < before) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    // still mapped by a running instance
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean isOffHeap(BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof IntBufferDataBuffer;
+    }
+
+    /**
+     * Heap copy of a region of an off-heap image. Java2D has no fast loops for custom rasters,
+     * so only the part that is actually on screen should be copied and drawn.
+     */
+    public static BufferedImage copyRegion(BufferedImage image, Rectangle region) {
+        IntBuffer pixels = ((IntBufferDataBuffer) image.getRaster().getDataBuffer()).pixels.duplicate();
+        BufferedImage ret = new BufferedImage(region.width, region.height, ImageUtils.getEffectiveType(image));
+        WritableRaster out = ret.getRaster();
+        int[] row = new int[region.width];
+        for (int y = 0; y < region.height; ++y) {
+            pixels.position((region.y + y) * image.getWidth() + region.x);
+            pixels.get(row);
+            out.setDataElements(0, y, region.width, 1, row);
+        }
+        return ret;
+    }
+
+    /* ============================================== */
+
+    private static IntBuffer allocate(long size) {
+        if (size > Integer.MAX_VALUE / 4) {
+            throw new OutOfMemoryError("Image too large for an int buffer: " + size + " pixels");
+        }
+        if (MODE == Mode.DIRECT) {
+            return ByteBuffer.allocateDirect((int) size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        try {
+            Path file = Files.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
+            MappedByteBuffer buffer;
+            // the mapping stays valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size * 4);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            if (!file.toFile().delete()) {
+                // the OS does not unlink mapped files, delete it once the buffer is unmapped
+                deleteWhenCollected(buffer, file);
+            }
+            return buffer.order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteWhenCollected(MappedByteBuffer buffer, Path file) {
+        synchronized (mappedFiles) {
+            mappedFiles.add(new MappedFile(buffer, file));
+            if (cleaner == null) {
+                cleaner = new Thread(OffHeapImages::deleteCollectedFiles, "off-heap-cleaner");
+                cleaner.setDaemon(true);
+                cleaner.start();
+            }
+        }
+    }
+
+    /**
+     * Runs on the cleaner thread. The buffer is unmapped by its own cleaner around the time it is collected,
+     * so deleting may fail at first and is retried.
+     */
+    private static void deleteCollectedFiles() {
+        List<MappedFile> pending = new ArrayList<>();
+        while (true) {
+            try {
+                Reference<?> ref = collected.remove(DELETE_RETRY_MS);
+                if (ref != null) {
+                    pending.add((MappedFile) ref);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Iterator<MappedFile> it = pending.iterator(); it.hasNext(); ) {
+                MappedFile mappedFile = it.next();
+                try {
+                    Files.deleteIfExists(mappedFile.file);
+                } catch (IOException e) {
+                    continue;
+                }
+                it.remove();
+                synchronized (mappedFiles) {
+                    mappedFiles.remove(mappedFile);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage wrap(int width, int height, int type, IntBuffer pixels) {
+        boolean alpha = type != BufferedImage.TYPE_INT_RGB;
+        boolean premultiplied = type == BufferedImage.TYPE_INT_ARGB_PRE;
+        int[] masks = alpha
+                ? new int[]{0xff0000, 0xff00, 0xff, 0xff000000}
+                : new int[]{0xff0000, 0xff00, 0xff};
+        DirectColorModel colorModel = alpha
+                ? new DirectColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), 32,
+                masks[0], masks[1], masks[2], masks[3], premultiplied, DataBuffer.TYPE_INT)
+                : new DirectColorModel(24, masks[0], masks[1], masks[2]);
+        SampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, masks);
+        WritableRaster raster = new IntBufferRaster(sampleModel, new IntBufferDataBuffer(pixels, width * height));
+        return new BufferedImage(colorModel, raster, premultiplied, new Hashtable<>());
+    }
+
+    private static class MappedFile extends PhantomReference<Object> {
+        final Path file;
+
+        MappedFile(MappedByteBuffer buffer, Path file) {
+            super(buffer, collected);
+            this.file = file;
+        }
+    }
+
+    /**
+     * Int pixels held in an {@link IntBuffer} instead of an array.
+     */
+    private static class IntBufferDataBuffer extends DataBuffer {
+        private final IntBuffer pixels;
+
+        IntBufferDataBuffer(IntBuffer pixels, int size) {
+            super(TYPE_INT, size);
+            this.pixels = pixels;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels.put(i, val);
+        }
+    }
+
+    /**
+     * Raster.createWritableRaster only accepts array backed buffers for packed int sample models.
+     */
+    private static class IntBufferRaster extends WritableRaster {
+        IntBufferRaster(SampleModel sampleModel, DataBuffer dataBuffer) {
+            super(sampleModel, dataBuffer, new java.awt.Point(0, 0));
+        }
+    }
+
+}
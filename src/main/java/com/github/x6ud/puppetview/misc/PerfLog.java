@@ -0,0 +1,43 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timing output, so performance changes can be measured on real workspaces.
+ */
+public class PerfLog {
+
+    private static final int SAMPLES_PER_LOG = 100;
+
+    // guarded by the class, count and total nanos per key
+    private static final Map<String, long[]> samples = new HashMap<>();
+
+    public static void log(String format, Object... args) {
+        System.out.println("[perf] " + String.format(Locale.ROOT, format, args));
+    }
+
+    /**
+     * Log the milliseconds since <code>startNanos</code>, a value of {@link System#nanoTime()}.
+     */
+    public static void elapsed(String what, long startNanos) {
+        log("%s: %.1f ms", what, (System.nanoTime() - startNanos) / 1e6);
+    }
+
+    /**
+     * Like {@link #elapsed(String, long)} for frequent events such as paints:
+     * the average and count are logged once per {@value #SAMPLES_PER_LOG} calls with the same key.
+     */
+    public static synchronized void sampled(String what, long startNanos) {
+        long[] sample = samples.computeIfAbsent(what, key -> new long[2]);
+        sample[0] += 1;
+        sample[1] += System.nanoTime() - startNanos;
+        if (sample[0] == SAMPLES_PER_LOG) {
+            log("%s: %.2f ms average of %d", what, sample[1] / 1e6 / sample[0], sample[0]);
+            sample[0] = 0;
+            sample[1] = 0;
+        }
+    }
+
+}
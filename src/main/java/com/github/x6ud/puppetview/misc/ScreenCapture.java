@@ -0,0 +1,137 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A capture of every screen, stitched into one image of the virtual desktop.
+ * <p>
+ * Each screen is grabbed by a Robot of its own device on its own thread, so capturing takes as long as the slowest
+ * screen rather than the sum of all of them. Parts of the virtual desktop not covered by any screen stay black.
+ */
+public class ScreenCapture {
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "screen-capture");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by itself
+    private static final Map<GraphicsDevice, Robot> robots = new HashMap<>();
+
+    /**
+     * All screens, pixel (0, 0) is the top left of {@link #bounds}.
+     */
+    public final BufferedImage image;
+
+    /**
+     * The virtual desktop, the union of all screens.
+     */
+    public final Rectangle bounds;
+
+    /**
+     * Bounds of each screen, in virtual desktop coordinates.
+     */
+    public final List<Rectangle> screens;
+
+    private ScreenCapture(BufferedImage image, Rectangle bounds, List<Rectangle> screens) {
+        this.image = image;
+        this.bounds = bounds;
+        this.screens = Collections.unmodifiableList(screens);
+    }
+
+    /**
+     * The Robot of a screen, created once and reused by every capture.
+     */
+    public static Robot getRobot(GraphicsDevice device) throws AWTException {
+        synchronized (robots) {
+            Robot robot = robots.get(device);
+            if (robot == null) {
+                robot = new Robot(device);
+                robots.put(device, robot);
+            }
+            return robot;
+        }
+    }
+
+    /**
+     * Create the Robots of all screens ahead of the first capture.
+     */
+    public static void prewarm() {
+        try {
+            for (GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+                getRobot(device);
+            }
+        } catch (AWTException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static ScreenCapture capture() throws AWTException {
+        long start = System.nanoTime();
+        GraphicsDevice[] devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        List<Rectangle> screens = new ArrayList<>();
+        Rectangle bounds = null;
+        for (GraphicsDevice device : devices) {
+            Rectangle screen = device.getDefaultConfiguration().getBounds();
+            screens.add(screen);
+            bounds = bounds == null ? new Rectangle(screen) : bounds.union(screen);
+        }
+        if (devices.length == 1) {
+            BufferedImage image = getRobot(devices[0]).createScreenCapture(bounds);
+            PerfLog.elapsed("Captured 1 screen", start);
+            return new ScreenCapture(image, bounds, screens);
+        }
+
+        BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+        WritableRaster raster = image.getRaster();
+        Rectangle desktop = bounds;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < devices.length; ++i) {
+            GraphicsDevice device = devices[i];
+            Rectangle screen = screens.get(i);
+            futures.add(executor.submit(() -> {
+                BufferedImage shot = getRobot(device).createScreenCapture(screen);
+                // each screen writes its own region of the shared raster
+                int width = Math.min(screen.width, shot.getWidth());
+                int[] row = new int[width];
+                int[] samples = null;
+                for (int y = 0; y < Math.min(screen.height, shot.getHeight()); ++y) {
+                    samples = ImageUtils.readArgbRow(shot, y, row, samples);
+                    for (int x = 0; x < width; ++x) {
+                        row[x] &= 0xffffff;
+                    }
+                    raster.setDataElements(screen.x - desktop.x, screen.y - desktop.y + y, width, 1, row);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AWTException("Interrupted while capturing the screens");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AWTException) {
+                throw (AWTException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        PerfLog.elapsed("Captured " + devices.length + " screens", start);
+        return new ScreenCapture(image, bounds, screens);
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.github.x6ud.puppetview.misc;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tiles of {@link TileSource}s, shared by all windows, loaded off the EDT and evicted least-recently-used
+ * once their pixels exceed the memory cap (system property <code>puppetview.tileCacheMB</code>, default 256).
+ * <p>
+ * A tile of level <code>n</code> covers <code>TILE_SIZE * 2^n</code> source pixels square, read with a subsampling
+ * of <code>2^n</code>, so the pixels per tile stay the same at every zoom level.
+ * <p>
+ * Sources are closed through {@link #close(TileSource)}, so that no load is still reading them when they are.
+ */
+public class TileCache {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final long DEFAULT_CAPACITY_MB = 256;
+    private static final int WORKER_THREADS = 2;
+
+    private static final TileCache shared = new TileCache(
+            Long.getLong("puppetview.tileCacheMB", DEFAULT_CAPACITY_MB) * 1024 * 1024
+    );
+
+    public static TileCache getShared() {
+        return shared;
+    }
+
+    private static class Key {
+        final TileSource source;
+        final int level;
+        final int column;
+        final int row;
+        final FilterPipeline filters;
+
+        Key(TileSource source, int level, int column, int row, FilterPipeline filters) {
+            this.source = source;
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return source == key.source
+                    && level == key.level
+                    && column == key.column
+                    && row == key.row
+                    && filters.equals(key.filters);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(source) * 31 + level) * 31 + column) * 31 + row * 17 + filters.hashCode();
+        }
+    }
+
+    private final long capacity;
+    private final ExecutorService executor = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tile-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by this
+    private final LinkedHashMap<Key, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Key, List<Runnable>> pending = new HashMap<>();
+    private long size = 0;
+    // loads submitted and not finished yet, by source
+    private final Map<TileSource, Integer> loading = new IdentityHashMap<>();
+    // closed by close(), or waiting for their last load to finish to be closed
+    private final Set<TileSource> closed = Collections.newSetFromMap(new WeakHashMap<>());
+
+    public TileCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Region of the source, in full resolution pixels, covered by a tile.
+     */
+    public static Rectangle getTileBounds(TileSource source, int level, int column, int row) {
+        int span = TILE_SIZE << level;
+        int x = column * span;
+        int y = row * span;
+        return new Rectangle(x, y, Math.min(span, source.getWidth() - x), Math.min(span, source.getHeight() - y));
+    }
+
+    /**
+     * Get a tile if it is loaded. Otherwise start loading it in the background, return null,
+     * and call <code>onReady</code> on the EDT once it can be fetched.
+     *
+     * @param filters applied to the tile after reading it
+     */
+    public synchronized BufferedImage get(TileSource source,
+                                          int level,
+                                          int column,
+                                          int row,
+                                          FilterPipeline filters,
+                                          Runnable onReady) {
+        Key key = new Key(source, level, column, row, filters);
+        BufferedImage tile = tiles.get(key);
+        if (tile != null || closed.contains(source)) {
+            return tile;
+        }
+        List<Runnable> callbacks = pending.get(key);
+        if (callbacks != null) {
+            callbacks.add(onReady);
+            return null;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(onReady);
+        pending.put(key, callbacks);
+        loading.merge(source, 1, Integer::sum);
+        executor.submit(() -> {
+            BufferedImage loaded = null;
+            try {
+                if (!isClosed(source)) {
+                    loaded = source.read(getTileBounds(source, level, column, row), 1 << level);
+                    if (!filters.isIdentity()) {
+                        loaded = filters.apply(loaded);
+                    }
+                    loaded = CompatibleImages.normalize(loaded);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            List<Runnable> done;
+            boolean closeNow;
+            synchronized (this) {
+                done = pending.remove(key);
+                boolean isClosed = closed.contains(source);
+                if (loaded != null && !isClosed) {
+                    put(key, loaded);
+                }
+                int count = loading.get(source) - 1;
+                if (count == 0) {
+                    loading.remove(source);
+                } else {
+                    loading.put(source, count);
+                }
+                closeNow = count == 0 && isClosed;
+            }
+            if (closeNow) {
+                closeQuietly(source);
+            } else if (loaded != null) {
+                SwingUtilities.invokeLater(() -> done.forEach(Runnable::run));
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Drop all tiles of a source and close it. Loads of the source that did not start yet are skipped, and the
+     * source is closed once the ones already reading it are done. Their tiles are dropped as well.
+     */
+    public void close(TileSource source) {
+        boolean closeNow;
+        synchronized (this) {
+            if (!closed.add(source)) {
+                return;
+            }
+            evict(source);
+            closeNow = !loading.containsKey(source);
+        }
+        if (closeNow) {
+            closeQuietly(source);
+        }
+    }
+
+    private synchronized boolean isClosed(TileSource source) {
+        return closed.contains(source);
+    }
+
+    private static void closeQuietly(TileSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drop all tiles of a source.
+     */
+    private void evict(TileSource source) {
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = iterator.next();
+            if (entry.getKey().source == source) {
+                size -= sizeOf(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void put(Key key, BufferedImage tile) {
+        tiles.put(key, tile);
+        size += sizeOf(tile);
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = tiles.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = iterator.next();
+            if (entry.getKey() == key) {
+                // never evict what was just loaded
+                continue;
+            }
+            size -= sizeOf(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.github.x6ud.puppetview.misc;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Full resolution pixels of an image that is too large to be kept in memory, read a region at a time.
+ * Implementations must allow concurrent reads.
+ */
+public interface TileSource extends Closeable {
+
+    /**
+     * Images with more pixels are never decoded whole. Imported files are shown from an overview and read
+     * from the file tile by tile, and they are stored as {@code RAW} workspace blobs that are restored the same way
+     * (system property <code>puppetview.tiledMegapixels</code>, default 16).
+     */
+    long FULL_DECODE_MAX_PIXELS = Long.getLong("puppetview.tiledMegapixels", 16) * 1000 * 1000;
+
+    /**
+     * Longer side of the in-memory overview kept for images shown tile by tile.
+     */
+    int OVERVIEW_SIZE = 2048;
+
+    // rows of full resolution pixels read at once while building an overview
+    int OVERVIEW_STRIP_HEIGHT = 256;
+
+    // bytes of full resolution pixels read at once while hashing or saving the whole image.
+    // large, because sequential formats decode everything above a region again for every read
+    int STRIP_BYTES = 128 * 1024 * 1024;
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Read a region, keeping every <code>subsampling</code>-th pixel in both directions.
+     * The result is <code>ceil(width / subsampling)</code> by <code>ceil(height / subsampling)</code>.
+     */
+    BufferedImage read(Rectangle region, int subsampling) throws IOException;
+
+    /**
+     * Content hash of the whole image, never 0. By default the same as {@link ImageUtils#hash(BufferedImage)} of
+     * the whole image, computed from strips of rows. Implementations may use a cheaper hash that is only equal
+     * for equal content from the same kind of source.
+     */
+    default long hash() throws IOException {
+        return ImageUtils.hash(this);
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Rows per strip for reading the whole image a strip at a time.
+     */
+    static int getStripHeight(int width) {
+        return (int) Math.max(1, STRIP_BYTES / (4L * width));
+    }
+
+    /**
+     * Box-filtered copy whose longer side is at most <code>maxSize</code>.
+     * The source is read in strips, so only a few rows of full resolution pixels are in memory at a time.
+     */
+    static BufferedImage createOverview(TileSource source, int maxSize) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int factor = Math.max(1, (Math.max(width, height) + maxSize - 1) / maxSize);
+        int stripHeight = Math.max(1, OVERVIEW_STRIP_HEIGHT / factor) * factor;
+        BufferedImage overview = null;
+        int[] row = null;
+        for (int y = 0; y < height; y += stripHeight) {
+            BufferedImage strip = source.read(new Rectangle(0, y, width, Math.min(stripHeight, height - y)), 1);
+            BufferedImage reduced = ImageUtils.downsample(strip, factor);
+            if (overview == null) {
+                overview = new BufferedImage(
+                        (width + factor - 1) / factor,
+                        (height + factor - 1) / factor,
+                        reduced.getType()
+                );
+                row = new int[reduced.getWidth()];
+            }
+            for (int ry = 0; ry < reduced.getHeight(); ++ry) {
+                reduced.getRaster().getDataElements(0, ry, row.length, 1, row);
+                overview.getRaster().setDataElements(0, y / factor + ry, row.length, 1, row);
+            }
+        }
+        return overview;
+    }
+
+}
@@ -1,15 +1,21 @@
 package com.github.x6ud.puppetview.window;
 
+import com.github.x6ud.puppetview.misc.PerfLog;
+import com.github.x6ud.puppetview.misc.ScreenCapture;
+
 import javax.swing.*;
 import java.awt.*;
-import java.awt.event.KeyAdapter;
-import java.awt.event.KeyEvent;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
+import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
-public class ColorPicker extends JFrame {
+/**
+ * Pick a color from the screens, with a magnifier following the mouse.
+ * One overlay window covers each screen, all of them showing parts of one capture of the virtual desktop.
+ */
+public class ColorPicker {
 
     private static final int REPAINT_FPS = 60;
     private static final int WINDOW_SIZE = 105;
@@ -23,12 +29,20 @@ public class ColorPicker extends JFrame {
     private Robot robot;
 
     private BufferedImage captureImage;
-    private int screenWidth;
-    private int screenHeight;
+    // virtual desktop bounds, and the screens in capture coordinates
+    private Rectangle desktop;
+    private final List<Rectangle> screens = new ArrayList<>();
+    private final List<ScreenOverlay> overlays = new ArrayList<>();
+    private final KeyListener keyListener;
+    private final MouseListener mouseListener;
 
     private Timer repaintTimer;
+    // magnifier with its label as last painted
+    private Rectangle paintedMagnifier;
 
     private Consumer<String> resultHandler;
+    // System.currentTimeMillis() of the request, until the first paint reports the latency
+    private long requestedAt;
 
     private String mode;
     private String result = "";
@@ -37,29 +51,15 @@ public class ColorPicker extends JFrame {
     private int windowX = 0;
     private int windowY = 0;
 
-    public ColorPicker(String mode, Consumer<String> resultHandler) {
-        this.mode = mode;
+    public ColorPicker(Consumer<String> resultHandler) {
         this.resultHandler = resultHandler;
 
-        setResizable(false);
-        setUndecorated(true);
-        setAlwaysOnTop(true);
-        setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
-
         repaintTimer = new Timer(1000 / REPAINT_FPS, e -> {
             update();
-            repaint();
-        });
-
-        add(new JPanel() {
-            @Override
-            public void paint(Graphics g) {
-                super.paint(g);
-                render((Graphics2D) g);
-            }
+            repaintMagnifier();
         });
 
-        addKeyListener(new KeyAdapter() {
+        keyListener = new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent ke) {
                 switch (ke.getKeyCode()) {
@@ -80,50 +80,82 @@ public class ColorPicker extends JFrame {
                         break;
                 }
             }
-        });
+        };
 
-        addMouseListener(new MouseAdapter() {
+        mouseListener = new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
                 accept();
             }
-        });
+        };
     }
 
     private void moveMouse(int dx, int dy) {
         if (robot != null) {
-            robot.mouseMove(targetX + dx, targetY + dy);
+            robot.mouseMove(desktop.x + targetX + dx, desktop.y + targetY + dy);
         }
     }
 
-    public void pickColor() {
+    /**
+     * Create the overlay windows ahead of the first use.
+     */
+    public void prewarm() {
+        ScreenOverlay.prewarm(overlays, this::createOverlay);
+    }
+
+    /**
+     * Start picking, unless already picking.
+     *
+     * @param mode        format of the result, see {@link #update()}
+     * @param requestedAt System.currentTimeMillis() of the click that asked for it, to report the latency
+     */
+    public void pickColor(String mode, long requestedAt) {
+        if (captureImage != null) {
+            return;
+        }
+        this.mode = mode;
+        this.requestedAt = requestedAt;
         try {
             // get screen capture
-            Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-            robot = new Robot();
-            captureImage = robot.createScreenCapture(new Rectangle(screenSize));
-            screenWidth = screenSize.width;
-            screenHeight = screenSize.height;
-
-            getContentPane().setPreferredSize(screenSize);
-            pack();
-            setVisible(true);
-            setLocation(0, 0);
-
-            getContentPane().setPreferredSize(screenSize);
-            pack();
-            setVisible(true);
-            setLocation(0, 0);
+            ScreenCapture capture = ScreenCapture.capture();
+            robot = ScreenCapture.getRobot(GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice());
+            captureImage = capture.image;
+            desktop = capture.bounds;
+            screens.clear();
+            paintedMagnifier = null;
+            for (Rectangle screen : capture.screens) {
+                Rectangle local = new Rectangle(screen);
+                local.translate(-desktop.x, -desktop.y);
+                screens.add(local);
+            }
+            // place the magnifier before the first paint, not at where the last pick ended
+            update();
+
+            ScreenOverlay.ensureCount(overlays, capture.screens.size(), this::createOverlay);
+            for (int i = 0; i < overlays.size(); ++i) {
+                overlays.get(i).cover(capture.screens.get(i), desktop);
+            }
             repaintTimer.start();
         } catch (AWTException e) {
             e.getMessage();
         }
     }
 
+    private ScreenOverlay createOverlay() {
+        ScreenOverlay overlay = new ScreenOverlay(this::render);
+        overlay.addKeyListener(keyListener);
+        overlay.addMouseListener(mouseListener);
+        overlay.setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
+        return overlay;
+    }
+
     private void close() {
         repaintTimer.stop();
-        setVisible(false);
-        super.dispose();
+        captureImage = null;
+        // hidden, not disposed, so the next pick reuses the windows
+        for (ScreenOverlay overlay : overlays) {
+            overlay.setVisible(false);
+        }
     }
 
     private void accept() {
@@ -133,17 +165,28 @@ public class ColorPicker extends JFrame {
 
     private void update() {
         Point mouse = MouseInfo.getPointerInfo().getLocation();
-        targetX = mouse.x;
-        targetY = mouse.y;
+        targetX = mouse.x - desktop.x;
+        targetY = mouse.y - desktop.y;
+        // keep the magnifier on the screen the mouse is on
+        Rectangle screen = null;
+        for (Rectangle bounds : screens) {
+            if (bounds.contains(targetX, targetY)) {
+                screen = bounds;
+                break;
+            }
+        }
+        if (screen == null) {
+            return;
+        }
         windowX = targetX + 10;
         windowY = targetY - WINDOW_SIZE / 2;
-        if (windowX > screenWidth - WINDOW_SIZE) {
+        if (windowX > screen.x + screen.width - WINDOW_SIZE) {
             windowX = targetX - WINDOW_SIZE - 10;
         }
-        if (windowX < 0) {
-            windowX = 0;
+        if (windowX < screen.x) {
+            windowX = screen.x;
         }
-        windowY = Math.max(0, Math.min(screenHeight - (WINDOW_SIZE + FONT_SIZE + STRING_PAD_Y * 2), windowY));
+        windowY = Math.max(screen.y, Math.min(screen.y + screen.height - (WINDOW_SIZE + FONT_SIZE + STRING_PAD_Y * 2), windowY));
 
         if (captureImage == null) {
             return;
@@ -172,10 +215,24 @@ public class ColorPicker extends JFrame {
         }
     }
 
+    /**
+     * Repaint where the magnifier was and where it is now.
+     */
+    private void repaintMagnifier() {
+        Rectangle magnifier = new Rectangle(windowX, windowY, WINDOW_SIZE + 1, WINDOW_SIZE + FONT_SIZE + STRING_PAD_Y * 2 + 1);
+        Rectangle dirty = paintedMagnifier != null ? magnifier.union(paintedMagnifier) : magnifier;
+        overlays.forEach(overlay -> overlay.repaintCapture(dirty));
+        paintedMagnifier = magnifier;
+    }
+
     private void render(Graphics2D g) {
         if (captureImage == null) {
             return;
         }
+        if (requestedAt != 0) {
+            PerfLog.log("Click to color picker overlay: %d ms", System.currentTimeMillis() - requestedAt);
+            requestedAt = 0;
+        }
         g.drawImage(captureImage, 0, 0, null);
 
         g.setColor(new Color(0, 0, 0));
@@ -1,17 +1,29 @@
 package com.github.x6ud.puppetview.window;
 
 import com.github.x6ud.puppetview.misc.ClipboardUtils;
+import com.github.x6ud.puppetview.misc.CompatibleImages;
+import com.github.x6ud.puppetview.misc.DerivedImageCache;
+import com.github.x6ud.puppetview.misc.FilterPipeline;
+import com.github.x6ud.puppetview.misc.FrameScheduler;
+import com.github.x6ud.puppetview.misc.ImagePyramid;
 import com.github.x6ud.puppetview.misc.ImageUtils;
 import com.github.x6ud.puppetview.misc.MenuBuilder;
+import com.github.x6ud.puppetview.misc.OffHeapImages;
+import com.github.x6ud.puppetview.misc.PerfLog;
 import com.github.x6ud.puppetview.misc.Point;
+import com.github.x6ud.puppetview.misc.TileCache;
+import com.github.x6ud.puppetview.misc.TileSource;
 import com.sun.awt.AWTUtilities;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
 public class ReferenceImage extends JFrame {
@@ -24,10 +36,20 @@ public class ReferenceImage extends JFrame {
     private static final float OPACITY_SCROLL_SPEED = 0.1f;
     private static final int COLLAPSED_SIZE = 86;
     private static final float COLLAPSED_OPACITY = 0.75f;
+    // full quality rendering resumes after the mouse wheel was idle this long
+    private static final int INTERACTION_IDLE_MS = 150;
+    // larger windows are drawn directly instead of keeping a frame buffer
+    private static final int MAX_FRAME_PIXELS = 4 * 1024 * 1024;
 
-    private final BufferedImage image;
+    private static final BufferedImage PLACEHOLDER = createPlaceholder();
+
+    private BufferedImage image;
+    private boolean imageLoaded;
     private final int imageWidth;
     private final int imageHeight;
+    private volatile long imageHash;
+    // full resolution pixels of a large image, image then only holds an overview
+    private TileSource tileSource;
 
     private boolean mouseOver = false;
 
@@ -39,9 +61,23 @@ public class ReferenceImage extends JFrame {
     private final CheckboxMenuItem flipHorizontalMenu;
     private final CheckboxMenuItem flipVerticalMenu;
 
-    private boolean greyscale = false;
+    private FilterPipeline filters = FilterPipeline.NONE;
     private final CheckboxMenuItem greyscaleMenu;
-    private BufferedImage cachedGreyscaleImage = null;
+    private final CheckboxMenuItem invertMenu;
+    private final MenuBuilder.RadioGroup levelsMenu;
+    private final MenuBuilder.RadioGroup posterizeMenu;
+    private final MenuBuilder.RadioGroup saturationMenu;
+    // what the last paint showed, kept on screen while a filtered image is being computed
+    private BufferedImage displayedImage;
+    // displayedImage drawn with the current transform, so repaints that only change the border are a single blit.
+    // only kept while the window is hovered, active or interacting, so there are at most a couple at any time
+    private BufferedImage frame;
+    private BufferedImage frameSource;
+    private boolean frameValid = false;
+
+    // true during a burst of wheel zooming or rotating, rendering then trades quality for speed
+    private boolean interacting = false;
+    private final Timer interactionTimer;
 
     private double scale = 1;
     private int rotationDeg = 0;
@@ -54,12 +90,38 @@ public class ReferenceImage extends JFrame {
     private double lastCenterX;
     private double lastCenterY;
 
+    private Consumer<ReferenceImage> stateListener;
+
+    private final Runnable applyUpdate = this::applyUpdate;
+    private Polygon appliedWindowShape;
+
+    private final Runnable tileReady = () -> {
+        frameValid = false;
+        repaint();
+    };
+
     public ReferenceImage(BufferedImage image, Consumer<ReferenceImage> closeCallback) throws HeadlessException {
+        this(image, image.getWidth(), image.getHeight(), closeCallback);
+    }
+
+    /**
+     * Open a window for an image of the given size that is still being loaded.
+     * A placeholder is shown until {@link #setImage(BufferedImage)} is called.
+     */
+    public ReferenceImage(int imageWidth, int imageHeight, Consumer<ReferenceImage> closeCallback) throws HeadlessException {
+        this(null, imageWidth, imageHeight, closeCallback);
+    }
+
+    private ReferenceImage(BufferedImage image,
+                           int imageWidth,
+                           int imageHeight,
+                           Consumer<ReferenceImage> closeCallback) throws HeadlessException {
         super();
 
-        this.image = image;
-        imageWidth = image.getWidth();
-        imageHeight = image.getHeight();
+        this.image = image != null ? image : PLACEHOLDER;
+        this.imageLoaded = image != null;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
         lastCenterX = imageWidth / 2.0d;
         lastCenterY = imageHeight / 2.0d;
 
@@ -83,6 +145,13 @@ public class ReferenceImage extends JFrame {
             }
         });
 
+        interactionTimer = new Timer(INTERACTION_IDLE_MS, e -> {
+            interacting = false;
+            frameValid = false;
+            repaint();
+        });
+        interactionTimer.setRepeats(false);
+
         // right click menu
         PopupMenu popupMenu = MenuBuilder.popup();
         flipHorizontalMenu = MenuBuilder.checkbox(popupMenu, "Flip Horizontally", flipHorizontal, e -> {
@@ -95,9 +164,39 @@ public class ReferenceImage extends JFrame {
             rotationDeg = (360 - rotationDeg) % 360;
             update();
         });
-        greyscaleMenu = MenuBuilder.checkbox(popupMenu, "Greyscale", greyscale, e -> {
-            greyscale = e.getStateChange() == ItemEvent.SELECTED;
-            repaint();
+        popupMenu.addSeparator();
+        greyscaleMenu = MenuBuilder.checkbox(popupMenu, "Greyscale", false, e -> {
+            setFilters(filters.withGreyscale(e.getStateChange() == ItemEvent.SELECTED));
+        });
+        invertMenu = MenuBuilder.checkbox(popupMenu, "Invert", false, e -> {
+            setFilters(filters.withInvert(e.getStateChange() == ItemEvent.SELECTED));
+        });
+        levelsMenu = MenuBuilder.radioGroup(MenuBuilder.menu(popupMenu, "Levels"), "0-255", value -> {
+            String[] range = value.split("-");
+            setFilters(filters.withLevels(Integer.parseInt(range[0]), Integer.parseInt(range[1])));
+        })
+                .item("Off", "0-255")
+                .item("Light (10-245)", "10-245")
+                .item("Medium (25-230)", "25-230")
+                .item("Strong (50-205)", "50-205");
+        posterizeMenu = MenuBuilder.radioGroup(MenuBuilder.menu(popupMenu, "Posterize"), "0", value -> {
+            setFilters(filters.withPosterize(Integer.parseInt(value)));
+        })
+                .item("Off", "0")
+                .item("2 Values", "2")
+                .item("3 Values", "3")
+                .item("4 Values", "4")
+                .item("5 Values", "5")
+                .item("7 Values", "7");
+        saturationMenu = MenuBuilder.radioGroup(MenuBuilder.menu(popupMenu, "Limit Saturation"), "100", value -> {
+            setFilters(filters.withSaturationLimit(Integer.parseInt(value)));
+        })
+                .item("Off", "100")
+                .item("75%", "75")
+                .item("50%", "50")
+                .item("25%", "25");
+        MenuBuilder.item(popupMenu, "Reset Filters", e -> {
+            setFilters(FilterPipeline.NONE);
         });
         popupMenu.addSeparator();
         MenuBuilder.item(popupMenu, "1:1 Size", e -> {
@@ -123,7 +222,11 @@ public class ReferenceImage extends JFrame {
         });
         popupMenu.addSeparator();
         MenuBuilder.item(popupMenu, "Copy to Clipboard", e -> {
-            ClipboardUtils.setImage(image);
+            try {
+                ClipboardUtils.setImage(getFullImage());
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
         });
         popupMenu.addSeparator();
         MenuBuilder.item(popupMenu, "Hide", e -> {
@@ -187,11 +290,14 @@ public class ReferenceImage extends JFrame {
                     int dy = e.getY() - dragStart.y;
                     setLocation(x0 + dx, y0 + dy);
                     repaint();
+                    fireStateChanged();
                 }
             });
 
             addMouseWheelListener(e -> {
                 if (mouseOver && !collapsed) {
+                    interacting = true;
+                    interactionTimer.restart();
                     if (e.isControlDown()) {
                         // ctrl+wheel set rotation
                         if (e.isShiftDown()) {
@@ -229,7 +335,20 @@ public class ReferenceImage extends JFrame {
 
         // show
         setVisible(true);
-        update();
+        applyUpdate();
+    }
+
+    @Override
+    public void setVisible(boolean b) {
+        super.setVisible(b);
+        if (!b) {
+            // a hidden window never paints again to drop its frame itself
+            synchronized (this) {
+                frame = null;
+                frameSource = null;
+            }
+        }
+        fireStateChanged();
     }
 
     /**
@@ -238,6 +357,13 @@ public class ReferenceImage extends JFrame {
     public void close() {
         setVisible(false);
         dispose();
+        synchronized (this) {
+            closeTileSource();
+        }
+    }
+
+    public boolean isCollapsed() {
+        return collapsed;
     }
 
     public void flipHorizontal() {
@@ -291,7 +417,21 @@ public class ReferenceImage extends JFrame {
 
     /* ============================================== */
 
-    private synchronized void update() {
+    /**
+     * Apply changed transform, collapse or opacity values with the next display frame.
+     * Any number of calls within a frame cost a single window update.
+     */
+    private void update() {
+        FrameScheduler.schedule(applyUpdate);
+    }
+
+    /**
+     * Recompute the window geometry and push whatever changed to the window system.
+     */
+    private synchronized void applyUpdate() {
+        if (!isDisplayable()) {
+            return;
+        }
         actualScale = collapsed ?
                 Math.min(scale, (double) COLLAPSED_SIZE / Math.max(imageWidth, imageHeight))
                 : scale;
@@ -318,8 +458,9 @@ public class ReferenceImage extends JFrame {
 
         translateX = left;
         translateY = top;
+        frameValid = false;
 
-        Shape windowShape = new Polygon(
+        Polygon windowShape = new Polygon(
                 new int[]{(int) (v1.x - left), (int) (v2.x - left), (int) (v3.x - left), (int) (v4.x - left)},
                 new int[]{(int) (v1.y - top), (int) (v2.y - top), (int) (v3.y - top), (int) (v4.y - top)},
                 4
@@ -349,12 +490,25 @@ public class ReferenceImage extends JFrame {
         double dy = centerY - lastCenterY;
         lastCenterX = centerX;
         lastCenterY = centerY;
-        setLocation(getX() - (int) dx, getY() - (int) dy);
-
-        setSize((int) width, (int) height);
-        setOpacity(collapsed ? COLLAPSED_OPACITY : opacity);
+        // every call below is a round trip to the window system, skip those that would change nothing
+        if ((int) dx != 0 || (int) dy != 0) {
+            setLocation(getX() - (int) dx, getY() - (int) dy);
+        }
+        if (getWidth() != (int) width || getHeight() != (int) height) {
+            setSize((int) width, (int) height);
+        }
+        float newOpacity = collapsed ? COLLAPSED_OPACITY : opacity;
+        if (getOpacity() != newOpacity) {
+            setOpacity(newOpacity);
+        }
         repaint();
-        AWTUtilities.setWindowShape(this, windowShape);
+        if (appliedWindowShape == null
+                || !Arrays.equals(appliedWindowShape.xpoints, windowShape.xpoints)
+                || !Arrays.equals(appliedWindowShape.ypoints, windowShape.ypoints)) {
+            AWTUtilities.setWindowShape(this, windowShape);
+            appliedWindowShape = windowShape;
+        }
+        fireStateChanged();
     }
 
     private Point rotatePointAroundOrigin(double x, double y, double sin, double cos) {
@@ -376,51 +530,342 @@ public class ReferenceImage extends JFrame {
 
         // draw image
         {
-            AffineTransform originTransform = g.getTransform();
-            AffineTransform transform = new AffineTransform();
-            transform.translate(-translateX, -translateY);
-            transform.rotate(Math.toRadians(rotationDeg), 0, 0);
-            g.setTransform(transform);
+            BufferedImage target = filters.isIdentity() ? image : getFilteredImage();
+            if (target != null) {
+                // draw downscaled windows from a pre-filtered mipmap, the full image until it is ready.
+                // while the wheel is moving, go one level coarser
+                int level = ImagePyramid.levelFor(target, interacting ? actualScale / 2 : actualScale);
+                BufferedImage mipmap = ImagePyramid.get(target, level, this::repaint);
+                if (mipmap != null) {
+                    target = mipmap;
+                }
+            }
+            if (target != null || displayedImage == null) {
+                displayedImage = target != null ? target : image;
+            }
+
+            int width = getWidth();
+            int height = getHeight();
+            boolean keepFrame = mouseOver || interacting || isActive();
+            if (keepFrame && (long) width * height <= MAX_FRAME_PIXELS) {
+                if (!frameValid
+                        || frameSource != displayedImage
+                        || frame == null
+                        || frame.getWidth() != width
+                        || frame.getHeight() != height) {
+                    long start = System.nanoTime();
+                    renderFrame(width, height);
+                    PerfLog.sampled("Frame from " + CompatibleImages.describe(displayedImage), start);
+                }
+                g.drawImage(frame, 0, 0, null);
+            } else {
+                frame = null;
+                frameSource = null;
+                long start = System.nanoTime();
+                Graphics2D imageGraphics = (Graphics2D) g.create();
+                try {
+                    setImageQualityHints(imageGraphics);
+                    drawImage(imageGraphics, getVisibleBounds(g));
+                } finally {
+                    imageGraphics.dispose();
+                }
+                PerfLog.sampled("Paint from " + CompatibleImages.describe(displayedImage), start);
+            }
+        }
+
+        // draw border
+        if (borderShape != null) {
+            g.setColor(isActive() && mouseOver ? new Color(57, 122, 243) : new Color(0x98, 0x98, 0x98));
+            g.draw(borderShape);
+        }
+    }
 
-            int width = (int) (imageWidth * actualScale);
-            int height = (int) (imageHeight * actualScale);
+    /**
+     * Draw the displayed image with the current transform into the cached frame, reusing its buffer if the size fits.
+     */
+    private void renderFrame(int width, int height) {
+        if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+            frame = getGraphicsConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        }
+        Graphics2D g = frame.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, width, height);
+            g.setComposite(AlphaComposite.SrcOver);
+            setImageQualityHints(g);
+            drawImage(g, null);
+        } finally {
+            g.dispose();
+        }
+        frameSource = displayedImage;
+        frameValid = true;
+    }
+
+    private void setImageQualityHints(Graphics2D g) {
+        if (interacting) {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        } else {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        }
+    }
+
+    /**
+     * @param visible part of the window to draw tiles for, null for all of it
+     */
+    private void drawImage(Graphics2D g, Rectangle visible) {
+        AffineTransform originTransform = g.getTransform();
+        AffineTransform transform = new AffineTransform();
+        transform.translate(-translateX, -translateY);
+        transform.rotate(Math.toRadians(rotationDeg), 0, 0);
+        g.setTransform(transform);
+
+        int width = (int) (imageWidth * actualScale);
+        int height = (int) (imageHeight * actualScale);
+        if (OffHeapImages.isOffHeap(displayedImage)) {
+            drawVisibleRegion(g, imageToWindow(transform, width, height, displayedImage.getWidth(), displayedImage.getHeight()), visible);
+            g.setTransform(transform);
+        } else {
             g.drawImage(
-                    greyscale ? getGreyscaleImage() : image,
+                    displayedImage,
                     flipHorizontal ? width : 0,
                     flipVertical ? height : 0,
                     flipHorizontal ? -width : width,
                     flipVertical ? -height : height,
                     null);
+        }
 
-            g.setTransform(originTransform);
+        if (tileSource != null && !interacting) {
+            // from full resolution image pixels to the same place on the window
+            AffineTransform imageToWindow = imageToWindow(transform, width, height, imageWidth, imageHeight);
+            g.setTransform(imageToWindow);
+            drawTiles(g, imageToWindow, visible);
         }
 
-        // draw border
-        if (borderShape != null) {
-            g.setColor(isActive() && mouseOver ? new Color(57, 122, 243) : new Color(0x98, 0x98, 0x98));
-            g.draw(borderShape);
+        g.setTransform(originTransform);
+    }
+
+    /**
+     * Transform from the pixels of an image of the given size to where it is drawn on the window.
+     */
+    private AffineTransform imageToWindow(AffineTransform windowTransform,
+                                          int width,
+                                          int height,
+                                          int sourceWidth,
+                                          int sourceHeight) {
+        AffineTransform transform = new AffineTransform(windowTransform);
+        if (flipHorizontal) {
+            transform.translate(width, 0);
+            transform.scale(-1, 1);
+        }
+        if (flipVertical) {
+            transform.translate(0, height);
+            transform.scale(1, -1);
         }
+        transform.scale((double) width / sourceWidth, (double) height / sourceHeight);
+        return transform;
     }
 
-    private BufferedImage getGreyscaleImage() {
-        if (cachedGreyscaleImage != null) {
-            return cachedGreyscaleImage;
+    /**
+     * Draw only the part of the displayed image that is on the window, copied to the heap first.
+     * Off-heap images are a custom raster, which Java2D draws pixel by pixel.
+     */
+    private void drawVisibleRegion(Graphics2D g, AffineTransform imageToWindow, Rectangle visible) {
+        Rectangle window = visible != null ? visible : new Rectangle(0, 0, getWidth(), getHeight());
+        Rectangle region;
+        try {
+            region = imageToWindow.createInverse().createTransformedShape(window).getBounds();
+        } catch (NoninvertibleTransformException e) {
+            return;
+        }
+        // keep the neighbours used for interpolation at the edges
+        region.grow(1, 1);
+        region = region.intersection(new Rectangle(0, 0, displayedImage.getWidth(), displayedImage.getHeight()));
+        if (region.isEmpty()) {
+            return;
+        }
+        g.setTransform(imageToWindow);
+        g.drawImage(OffHeapImages.copyRegion(displayedImage, region), region.x, region.y, null);
+    }
+
+    /**
+     * Draw the tiles that cover the visible part of the image over the overview, if the overview is
+     * too coarse for the current scale. Tiles that are not loaded yet are requested, the overview shows until then.
+     */
+    private void drawTiles(Graphics2D g, AffineTransform imageToWindow, Rectangle visible) {
+        int level = 0;
+        for (double scale = actualScale; scale <= 0.5; scale *= 2) {
+            ++level;
+        }
+        if ((long) image.getWidth() << level >= imageWidth) {
+            return;
+        }
+        Rectangle region = new Rectangle(0, 0, imageWidth, imageHeight);
+        if (visible != null) {
+            try {
+                region = region.intersection(imageToWindow.createInverse().createTransformedShape(visible).getBounds());
+            } catch (NoninvertibleTransformException e) {
+                return;
+            }
+            if (region.isEmpty()) {
+                return;
+            }
+        }
+        TileCache cache = TileCache.getShared();
+        int span = TileCache.TILE_SIZE << level;
+        for (int row = region.y / span; row <= (region.y + region.height - 1) / span; ++row) {
+            for (int column = region.x / span; column <= (region.x + region.width - 1) / span; ++column) {
+                BufferedImage tile = cache.get(tileSource, level, column, row, filters, tileReady);
+                if (tile != null) {
+                    Rectangle bounds = TileCache.getTileBounds(tileSource, level, column, row);
+                    g.drawImage(tile, bounds.x, bounds.y, bounds.width, bounds.height, null);
+                }
+            }
         }
-        return cachedGreyscaleImage = ImageUtils.greyScale(image);
+    }
+
+    /**
+     * The part of the window that is on some screen and inside the clip, in window coordinates.
+     */
+    private Rectangle getVisibleBounds(Graphics2D g) {
+        Rectangle screens = null;
+        for (GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+            Rectangle bounds = device.getDefaultConfiguration().getBounds();
+            screens = screens == null ? bounds : screens.union(bounds);
+        }
+        Rectangle visible = new Rectangle(0, 0, getWidth(), getHeight());
+        if (screens != null) {
+            screens.translate(-getX(), -getY());
+            visible = visible.intersection(screens);
+        }
+        Rectangle clip = g.getClipBounds();
+        return clip != null ? visible.intersection(clip) : visible;
+    }
+
+    /**
+     * @return null while the filtered image is still being computed
+     */
+    private BufferedImage getFilteredImage() {
+        FilterPipeline filters = this.filters;
+        return DerivedImageCache.getShared().get(image, filters.getSpec(), filters::apply, this::repaint);
     }
 
     /* ============================================== */
 
+    public FilterPipeline getFilters() {
+        return filters;
+    }
+
+    public void setFilters(FilterPipeline filters) {
+        this.filters = filters;
+        greyscaleMenu.setState(filters.isGreyscale());
+        invertMenu.setState(filters.isInvert());
+        levelsMenu.setValue(filters.getLevelsBlack() + "-" + filters.getLevelsWhite());
+        posterizeMenu.setValue(String.valueOf(filters.getPosterize()));
+        saturationMenu.setValue(String.valueOf(filters.getSaturationLimit()));
+        repaint();
+        fireStateChanged();
+    }
+
+    /* ============================================== */
+
+    /**
+     * The displayed image, a placeholder while {@link #isImageLoaded()} is false
+     * and only an overview if there is a {@link #getTileSource()}.
+     */
     public BufferedImage getImage() {
         return image;
     }
 
+    public boolean isImageLoaded() {
+        return imageLoaded;
+    }
+
+    /**
+     * Source of the full resolution pixels if only an overview is held in memory, otherwise null.
+     */
+    public TileSource getTileSource() {
+        return tileSource;
+    }
+
+    /**
+     * The image at full resolution. Reads all of it from the tile source if there is one.
+     */
+    public BufferedImage getFullImage() throws IOException {
+        TileSource tileSource = this.tileSource;
+        if (tileSource == null) {
+            return image;
+        }
+        return tileSource.read(new Rectangle(0, 0, imageWidth, imageHeight), 1);
+    }
+
+    /**
+     * Swap in the loaded image. Must have the size given to the constructor.
+     */
+    public void setImage(BufferedImage image) {
+        setImage(image, null);
+    }
+
+    /**
+     * Swap in an overview of an image that is not held in memory at full resolution.
+     * Full resolution tiles are read from the source when the window is scaled up. The window takes ownership
+     * of the source and closes it with the window or when the image is replaced.
+     */
+    public synchronized void setImage(BufferedImage overview, TileSource tileSource) {
+        closeTileSource();
+        this.image = overview;
+        this.tileSource = tileSource;
+        imageLoaded = true;
+        repaint();
+    }
+
+    private void closeTileSource() {
+        if (tileSource != null) {
+            // closed once the tile loads still reading it are done
+            TileCache.getShared().close(tileSource);
+            tileSource = null;
+        }
+    }
+
+    private static BufferedImage createPlaceholder() {
+        BufferedImage placeholder = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        placeholder.setRGB(0, 0, 0x808080);
+        return placeholder;
+    }
+
+    /**
+     * Content hash of the image, computed on first use. 0 while the image is not loaded and no hash was set.
+     * Images behind a tile source are hashed by the source, without reading them into memory as a whole.
+     */
+    public long getImageHash() {
+        long hash = imageHash;
+        if (hash == 0 && imageLoaded) {
+            try {
+                TileSource tileSource = this.tileSource;
+                imageHash = hash = tileSource != null ? tileSource.hash() : ImageUtils.hash(image);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Reuse a hash already known for this image, e.g. from a workspace index.
+     */
+    public void setImageHash(long hash) {
+        imageHash = hash;
+    }
+
     public static class ImageState implements Serializable {
         private static final long serialVersionUID = 1L;
         public boolean visible;
         public boolean collapsed;
         public boolean flipHorizontal;
         public boolean flipVertical;
+        // kept for workspaces written before filters existed, same as "greyscale" in filters
         public boolean greyscale;
         public double scale;
         public int rotationDeg;
@@ -429,6 +874,8 @@ public class ReferenceImage extends JFrame {
         public int y;
         public double centerX;
         public double centerY;
+        // FilterPipeline spec, null in old workspaces
+        public String filters;
     }
 
     public ImageState getImageState() {
@@ -437,7 +884,8 @@ public class ReferenceImage extends JFrame {
         state.collapsed = collapsed;
         state.flipHorizontal = flipHorizontal;
         state.flipVertical = flipVertical;
-        state.greyscale = greyscale;
+        state.greyscale = filters.isGreyscale();
+        state.filters = filters.getSpec();
         state.scale = scale;
         state.rotationDeg = rotationDeg;
         state.opacity = opacity;
@@ -448,6 +896,19 @@ public class ReferenceImage extends JFrame {
         return state;
     }
 
+    /**
+     * Listen to changes of the values returned by {@link #getImageState()}.
+     */
+    public void setStateListener(Consumer<ReferenceImage> stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    private void fireStateChanged() {
+        if (stateListener != null) {
+            stateListener.accept(this);
+        }
+    }
+
     public void setImageState(ImageState state) {
         setVisible(state.visible);
         collapsed = state.collapsed;
@@ -456,8 +917,11 @@ public class ReferenceImage extends JFrame {
         flipHorizontalMenu.setState(flipHorizontal);
         flipVertical = state.flipVertical;
         flipVerticalMenu.setState(flipVertical);
-        greyscale = state.greyscale;
-        greyscaleMenu.setState(greyscale);
+        if (state.filters != null) {
+            setFilters(FilterPipeline.parse(state.filters));
+        } else {
+            setFilters(FilterPipeline.NONE.withGreyscale(state.greyscale));
+        }
         scale = state.scale;
         rotationDeg = state.rotationDeg;
         opacity = state.opacity;
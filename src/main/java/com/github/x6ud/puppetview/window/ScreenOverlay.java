@@ -0,0 +1,93 @@
+package com.github.x6ud.puppetview.window;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Full screen window covering one screen, drawing its part of a {@link com.github.x6ud.puppetview.misc.ScreenCapture}.
+ * The renderer draws in capture coordinates, where (0, 0) is the top left of the virtual desktop.
+ */
+class ScreenOverlay extends JFrame {
+
+    private final JPanel canvas;
+    private Point offset = new Point();
+
+    ScreenOverlay(Consumer<Graphics2D> renderer) {
+        setResizable(false);
+        setUndecorated(true);
+        setAlwaysOnTop(true);
+
+        canvas = new JPanel() {
+            @Override
+            public void paint(Graphics g) {
+                super.paint(g);
+                Graphics2D g2 = (Graphics2D) g;
+                g2.translate(-offset.x, -offset.y);
+                renderer.accept(g2);
+            }
+        };
+        add(canvas);
+    }
+
+    /**
+     * Cover a screen.
+     *
+     * @param screen  bounds of the screen, in virtual desktop coordinates
+     * @param desktop bounds of the virtual desktop
+     */
+    void cover(Rectangle screen, Rectangle desktop) {
+        offset = new Point(screen.x - desktop.x, screen.y - desktop.y);
+        setBounds(screen);
+        setVisible(true);
+    }
+
+    /**
+     * Make the list hold the given number of overlays, keeping the existing ones.
+     * Hidden overlays keep their native windows, so showing them again is cheap.
+     */
+    static void ensureCount(List<ScreenOverlay> overlays, int count, Supplier<ScreenOverlay> factory) {
+        while (overlays.size() < count) {
+            overlays.add(factory.get());
+        }
+        while (overlays.size() > count) {
+            overlays.remove(overlays.size() - 1).dispose();
+        }
+    }
+
+    /**
+     * Create overlays for the current screens with their native windows, without showing them.
+     */
+    static void prewarm(List<ScreenOverlay> overlays, Supplier<ScreenOverlay> factory) {
+        ensureCount(overlays, GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices().length, factory);
+        overlays.forEach(ScreenOverlay::addNotify);
+    }
+
+    /**
+     * Position of a mouse event on any overlay, in capture coordinates.
+     */
+    static Point toCapture(MouseEvent e) {
+        Point offset = ((ScreenOverlay) e.getComponent()).offset;
+        return new Point(e.getX() + offset.x, e.getY() + offset.y);
+    }
+
+    /**
+     * Repaint the part of an area, in capture coordinates, that is on this overlay.
+     */
+    void repaintCapture(Rectangle area) {
+        Rectangle local = new Rectangle(area);
+        local.translate(-offset.x, -offset.y);
+        local = local.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        if (!local.isEmpty()) {
+            canvas.repaint(local);
+        }
+    }
+
+    void repaintAll() {
+        canvas.repaint();
+    }
+
+}
@@ -1,21 +1,48 @@
 package com.github.x6ud.puppetview.window;
 
+import com.github.x6ud.puppetview.misc.CompatibleImages;
+import com.github.x6ud.puppetview.misc.ImageUtils;
+import com.github.x6ud.puppetview.misc.PerfLog;
+import com.github.x6ud.puppetview.misc.ScreenCapture;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
-public class Screenshot extends JFrame {
+/**
+ * Crop a region of the screens. One overlay window covers each screen, all of them showing parts of one capture
+ * of the virtual desktop, so the crop area can span several screens.
+ */
+public class Screenshot {
 
-    private static final int REPAINT_FPS = 60;
     private static final int RESIZE_INDICATOR_SIZE = 5;
+    private static final int MASK_ALPHA = (int) (255 * 0.4);
+
+    // builds dimmed layers and copies crops, a crop never waits for a dimmed layer
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "screenshot-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private BufferedImage captureImage;
+    // the capture under the mask outside of the crop area, null until it is built
+    private BufferedImage dimmedImage;
     private int screenWidth;
     private int screenHeight;
 
-    private Timer repaintTimer;
+    private final List<ScreenOverlay> overlays = new ArrayList<>();
+    private final KeyListener keyListener;
+    private final MouseListener mouseListener;
+    private final MouseMotionListener mouseMotionListener;
+    // crop frame with its border and resize indicators as last painted, null if there was none
+    private Rectangle paintedCropArea;
 
     private boolean draggingCropArea;
     private Point dragStart;
@@ -34,35 +61,18 @@ public class Screenshot extends JFrame {
     private Point lastMouse;
 
     private Consumer<BufferedImage> resultHandler;
+    // System.currentTimeMillis() of the request, until the first paint reports the latency
+    private long requestedAt;
 
     private enum MouseBehavior {
         NORMAL, MOVE, RESIZE_NW, RESIZE_N, RESIZE_NE, RESIZE_W, RESIZE_E, RESIZE_SW, RESIZE_S, RESIZE_SE
     }
 
-    public Screenshot(Consumer<BufferedImage> resultHandler) {
-        this.resultHandler = resultHandler;
-
-        setResizable(false);
-        setUndecorated(true);
-        setAlwaysOnTop(true);
-
-        repaintTimer = new Timer(1000 / REPAINT_FPS, e -> {
-            update();
-            repaint();
-        });
-
-        add(new JPanel() {
-            @Override
-            public void paint(Graphics g) {
-                super.paint(g);
-                render((Graphics2D) g);
-            }
-        });
-
+    public Screenshot() {
 
         // event listeners
         {
-            addKeyListener(new KeyAdapter() {
+            keyListener = new KeyAdapter() {
                 @Override
                 public void keyPressed(KeyEvent ke) {
                     switch (ke.getKeyCode()) {
@@ -76,9 +86,9 @@ public class Screenshot extends JFrame {
                             break;
                     }
                 }
-            });
+            };
 
-            addMouseListener(new MouseAdapter() {
+            mouseListener = new MouseAdapter() {
                 @Override
                 public void mouseClicked(MouseEvent e) {
                     if (
@@ -99,12 +109,13 @@ public class Screenshot extends JFrame {
                             // begin dragging crop area
                             draggingCropArea = true;
                             cropAreaExists = true;
-                            dragStart = dragEnd = e.getPoint();
+                            dragStart = dragEnd = ScreenOverlay.toCapture(e);
                         } else if (currMouseBehavior == MouseBehavior.NORMAL && nextClickBehavior != MouseBehavior.NORMAL) {
                             // begin move or resize
                             currMouseBehavior = nextClickBehavior;
-                            lastMouse = e.getPoint();
+                            lastMouse = ScreenOverlay.toCapture(e);
                         }
+                        refresh(ScreenOverlay.toCapture(e));
                     }
                 }
 
@@ -117,7 +128,7 @@ public class Screenshot extends JFrame {
                             if (draggingCropArea) {
                                 // stop crop area dragging
                                 draggingCropArea = false;
-                                dragEnd = e.getPoint();
+                                dragEnd = ScreenOverlay.toCapture(e);
 
                                 if (top == bottom || left == right) {
                                     cropAreaExists = false;
@@ -135,21 +146,28 @@ public class Screenshot extends JFrame {
                             } else {
                                 // close on right click
                                 close();
+                                return;
                             }
                             break;
                     }
+                    refresh(ScreenOverlay.toCapture(e));
+                }
+            };
+
+            mouseMotionListener = new MouseMotionAdapter() {
+                @Override
+                public void mouseMoved(MouseEvent e) {
+                    refresh(ScreenOverlay.toCapture(e));
                 }
-            });
 
-            addMouseMotionListener(new MouseMotionAdapter() {
                 @Override
                 public void mouseDragged(MouseEvent e) {
                     if (draggingCropArea) {
                         // dragging crop area
-                        dragEnd = e.getPoint();
+                        dragEnd = ScreenOverlay.toCapture(e);
                     } else if (currMouseBehavior != MouseBehavior.NORMAL && lastMouse != null) {
                         // move or resize
-                        Point mouse = e.getPoint();
+                        Point mouse = ScreenOverlay.toCapture(e);
                         int dx = mouse.x - lastMouse.x;
                         int dy = mouse.y - lastMouse.y;
                         lastMouse = mouse;
@@ -275,15 +293,30 @@ public class Screenshot extends JFrame {
                             bottom = newBottom;
                         }
                     }
+                    refresh(ScreenOverlay.toCapture(e));
                 }
-            });
+            };
         }
     }
 
     /**
-     * Start a new screenshot.
+     * Create the overlay windows ahead of the first screenshot.
+     */
+    public void prewarm() {
+        ScreenOverlay.prewarm(overlays, this::createOverlay);
+    }
+
+    /**
+     * Start a new screenshot, unless one is in progress.
+     *
+     * @param requestedAt System.currentTimeMillis() of the click that asked for it, to report the latency
      */
-    public void screenshot() {
+    public void screenshot(Consumer<BufferedImage> resultHandler, long requestedAt) {
+        if (captureImage != null) {
+            return;
+        }
+        this.resultHandler = resultHandler;
+        this.requestedAt = requestedAt;
         try {
             // reset
             left = 0;
@@ -294,43 +327,109 @@ public class Screenshot extends JFrame {
             dragEnd = null;
             cropAreaExists = false;
             nextClickBehavior = currMouseBehavior = MouseBehavior.NORMAL;
+            paintedCropArea = null;
 
             // get screen capture
-            Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-            captureImage = new Robot().createScreenCapture(new Rectangle(screenSize));
-            screenWidth = screenSize.width;
-            screenHeight = screenSize.height;
-
-            getContentPane().setPreferredSize(screenSize);
-            pack();
-            setVisible(true);
-            setLocation(0, 0);
-            repaintTimer.start();
+            ScreenCapture capture = ScreenCapture.capture();
+            captureImage = capture.image;
+            dimmedImage = null;
+            buildDimmedImage(captureImage);
+            screenWidth = capture.bounds.width;
+            screenHeight = capture.bounds.height;
+
+            ScreenOverlay.ensureCount(overlays, capture.screens.size(), this::createOverlay);
+            setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
+            for (int i = 0; i < overlays.size(); ++i) {
+                overlays.get(i).cover(capture.screens.get(i), capture.bounds);
+            }
         } catch (AWTException e) {
             e.getMessage();
         }
     }
 
+    private ScreenOverlay createOverlay() {
+        ScreenOverlay overlay = new ScreenOverlay(this::render);
+        overlay.addKeyListener(keyListener);
+        overlay.addMouseListener(mouseListener);
+        overlay.addMouseMotionListener(mouseMotionListener);
+        return overlay;
+    }
+
+    private void buildDimmedImage(BufferedImage capture) {
+        executor.submit(() -> {
+            try {
+                BufferedImage dimmed = ImageUtils.dim(capture, MASK_ALPHA);
+                SwingUtilities.invokeLater(() -> {
+                    // looks the same as the mask drawn over the capture, no repaint needed
+                    if (captureImage == capture) {
+                        dimmedImage = dimmed;
+                    }
+                });
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
     /**
      * Close screenshot window.
      */
     private void close() {
-        repaintTimer.stop();
-        setVisible(false);
-        super.dispose();
+        captureImage = null;
+        dimmedImage = null;
+        // hidden, not disposed, so the next screenshot reuses the windows
+        for (ScreenOverlay overlay : overlays) {
+            overlay.setVisible(false);
+        }
     }
 
     /**
      * Accept crop result.
      */
     private void accept() {
+        BufferedImage capture = captureImage;
+        Consumer<BufferedImage> resultHandler = this.resultHandler;
         close();
-        if (cropAreaExists && left < right && top < bottom) {
-            resultHandler.accept(captureImage.getSubimage(left, top, right - left, bottom - top));
+        if (capture != null && cropAreaExists && left < right && top < bottom) {
+            // a compact copy, so the capture of all screens can be collected as soon as it is done
+            Rectangle crop = new Rectangle(left, top, right - left, bottom - top);
+            executor.submit(() -> {
+                try {
+                    BufferedImage cropped = CompatibleImages.copy(capture, crop);
+                    SwingUtilities.invokeLater(() -> resultHandler.accept(cropped));
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Apply a mouse event to the crop area and cursor, and repaint what changed.
+     * While a crop area exists the dimmed mask outside of it stays the same, so only the old and the new
+     * crop frame are repainted. The whole overlay is repainted when the crop area appears or disappears.
+     */
+    private void refresh(Point mouse) {
+        update(mouse);
+        Rectangle cropArea = null;
+        if (cropAreaExists) {
+            cropArea = new Rectangle(left, top, right - left, bottom - top);
+            // border, and indicators centered on the edges
+            cropArea.grow(RESIZE_INDICATOR_SIZE, RESIZE_INDICATOR_SIZE);
+        }
+        if (cropArea == null && paintedCropArea == null) {
+            return;
+        }
+        if (cropArea == null || paintedCropArea == null) {
+            overlays.forEach(ScreenOverlay::repaintAll);
+        } else if (!cropArea.equals(paintedCropArea)) {
+            Rectangle dirty = cropArea.union(paintedCropArea);
+            overlays.forEach(overlay -> overlay.repaintCapture(dirty));
         }
+        paintedCropArea = cropArea;
     }
 
-    private void update() {
+    private void update(Point mouse) {
         if (cropAreaExists && draggingCropArea) {
             left = Math.min(dragStart.x, dragEnd.x);
             right = Math.max(dragStart.x, dragEnd.x);
@@ -339,7 +438,6 @@ public class Screenshot extends JFrame {
         }
 
         if (currMouseBehavior == MouseBehavior.NORMAL) {
-            Point mouse = MouseInfo.getPointerInfo().getLocation();
             int cursor = Cursor.CROSSHAIR_CURSOR;
             nextClickBehavior = MouseBehavior.NORMAL;
             if (!draggingCropArea) {
@@ -415,17 +513,30 @@ public class Screenshot extends JFrame {
     }
 
     private void render(Graphics2D g) {
+        if (requestedAt != 0) {
+            PerfLog.log("Click to screenshot overlay: %d ms", System.currentTimeMillis() - requestedAt);
+            requestedAt = 0;
+        }
+        BufferedImage dimmed = dimmedImage;
         if (captureImage != null) {
-            g.drawImage(captureImage, 0, 0, null);
+            if (cropAreaExists && dimmed != null) {
+                // dimmed layer, with the crop area copied over from the capture
+                g.drawImage(dimmed, 0, 0, null);
+                g.drawImage(captureImage, left, top, right, bottom, left, top, right, bottom, null);
+            } else {
+                g.drawImage(captureImage, 0, 0, null);
+            }
         }
 
         if (cropAreaExists) {
-            // crop area grey background
-            g.setColor(new Color(0, 0, 0, (int) (255 * 0.4)));
-            g.fillRect(0, 0, screenWidth, top);
-            g.fillRect(0, top, left, bottom - top);
-            g.fillRect(right, top, screenWidth - right, bottom - top);
-            g.fillRect(0, bottom, screenWidth, screenHeight - bottom);
+            if (dimmed == null) {
+                // crop area grey background, until the dimmed layer is ready
+                g.setColor(new Color(0, 0, 0, MASK_ALPHA));
+                g.fillRect(0, 0, screenWidth, top);
+                g.fillRect(0, top, left, bottom - top);
+                g.fillRect(right, top, screenWidth - right, bottom - top);
+                g.fillRect(0, bottom, screenWidth, screenHeight - bottom);
+            }
 
             // crop area border
             g.setColor(new Color(0, 174, 255));
@@ -443,6 +554,12 @@ public class Screenshot extends JFrame {
         }
     }
 
+    private void setCursor(Cursor cursor) {
+        for (ScreenOverlay overlay : overlays) {
+            overlay.setCursor(cursor);
+        }
+    }
+
     private void drawIndicator(Graphics2D g, int x, int y) {
         g.fillRect(
                 x - RESIZE_INDICATOR_SIZE / 2,
@@ -0,0 +1,292 @@
+package com.github.x6ud.puppetview.workspace;
+
+import com.github.x6ud.puppetview.misc.TileSource;
+import com.github.x6ud.puppetview.window.ReferenceImage;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a workspace file up to date in the background.
+ * <p>
+ * State changes are queued cheaply on the EDT and appended to a {@link WorkspaceJournal} once a second.
+ * A checkpoint (an incremental {@link WorkspaceFile#save}) is written shortly after images are added or
+ * removed, and otherwise at most once per {@link #CHECKPOINT_INTERVAL_MS} while states keep changing.
+ * All file I/O happens on a single saver thread.
+ */
+public class AutoSaver {
+
+    private static final long JOURNAL_FLUSH_INTERVAL_MS = 1000;
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+    // the auto-save file is only read back by us, so trade size for speed
+    private static final ImageCodec CODEC = ImageCodec.QOI;
+
+    private static class Record {
+        final ReferenceImage window;
+        final ReferenceImage.ImageState state;
+
+        Record(ReferenceImage window, ReferenceImage.ImageState state) {
+            this.window = window;
+            this.state = state;
+        }
+    }
+
+    private static class Snapshot {
+        final List<ReferenceImage> windows = new ArrayList<>();
+        final Map<ReferenceImage, Integer> positions = new IdentityHashMap<>();
+        final List<WorkspaceFile.ImageSource> images = new ArrayList<>();
+        final List<ReferenceImage.ImageState> states = new ArrayList<>();
+        // records made before the snapshot, already contained in it
+        final List<Record> records = new ArrayList<>();
+    }
+
+    private final String path;
+    private final Supplier<List<ReferenceImage>> windowList;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "workspace-auto-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by this
+    private List<Record> pendingRecords = new ArrayList<>();
+    private boolean structureChanged = false;
+    private boolean stateChanged = false;
+
+    private volatile boolean closing = false;
+
+    // saver thread only
+    private WorkspaceJournal journal;
+    // positions of the windows in the checkpoint the journal belongs to
+    private Map<ReferenceImage, Integer> journalPositions = new IdentityHashMap<>();
+    private long lastCheckpointTime = System.currentTimeMillis();
+    // after a failed save, the next attempt waits until then instead of reading every image again each tick
+    private long retryTime = 0;
+
+    /**
+     * @param windowList supplies the current windows, called on the EDT only
+     */
+    public AutoSaver(String path, Supplier<List<ReferenceImage>> windowList) {
+        this.path = path;
+        this.windowList = windowList;
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(
+                this::tick,
+                JOURNAL_FLUSH_INTERVAL_MS, JOURNAL_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Write a final checkpoint on the saver thread and stop it. Must be called on the EDT.
+     * Blocks until the checkpoint is on disk. If it can not be written, the remaining records go to the journal.
+     * If the saver thread does not finish in time, the last checkpoint and journal on disk are left as they are.
+     */
+    public void shutdown() {
+        closing = true;
+        Snapshot snapshot = takeSnapshot();
+        executor.execute(() -> {
+            checkpoint(snapshot);
+            try {
+                writeRecords();
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Auto save did not finish before exit");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ============================================== */
+
+    /**
+     * Called whenever the transform, location or visibility of a window changed.
+     */
+    public synchronized void stateChanged(ReferenceImage window) {
+        pendingRecords.add(new Record(window, window.getImageState()));
+        stateChanged = true;
+    }
+
+    /**
+     * Called when windows were opened. New images can not be journaled, so the next tick writes a checkpoint.
+     */
+    public synchronized void structureChanged() {
+        structureChanged = true;
+    }
+
+    public synchronized void removed(ReferenceImage window) {
+        pendingRecords.add(new Record(window, null));
+        structureChanged = true;
+    }
+
+    /* ============================================== */
+
+    private void tick() {
+        try {
+            boolean checkpointNeeded;
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                checkpointNeeded = structureChanged
+                        || stateChanged && now - lastCheckpointTime >= CHECKPOINT_INTERVAL_MS;
+            }
+            checkpointNeeded &= now >= retryTime;
+            writeRecords();
+            if (checkpointNeeded) {
+                Snapshot snapshot = takeSnapshotOnEdt();
+                if (snapshot != null) {
+                    checkpoint(snapshot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Append the pending records to the journal. Without a journal they stay pending until the next checkpoint
+     * contains them. Records of windows that are not in the checkpoint of the journal are dropped, those windows
+     * are new and only a checkpoint can save them.
+     */
+    private void writeRecords() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        List<Record> records;
+        synchronized (this) {
+            records = pendingRecords;
+            pendingRecords = new ArrayList<>();
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        for (Record record : records) {
+            Integer position = journalPositions.get(record.window);
+            if (position == null) {
+                continue;
+            }
+            if (record.state == null) {
+                journal.writeRemoved(position);
+            } else {
+                journal.writeState(position, record.state);
+            }
+        }
+        journal.sync();
+    }
+
+    /**
+     * Wait for a snapshot from the EDT. Gives up and returns null once {@link #shutdown()} is blocking the EDT.
+     */
+    private Snapshot takeSnapshotOnEdt() throws InterruptedException, ExecutionException {
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        SwingUtilities.invokeLater(() -> future.complete(closing ? null : takeSnapshot()));
+        while (true) {
+            try {
+                return future.get(JOURNAL_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (closing) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Capture the windows on the EDT. The pending records are taken along, the snapshot already contains them.
+     */
+    private synchronized Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (ReferenceImage window : windowList.get()) {
+            snapshot.positions.put(window, snapshot.windows.size());
+            snapshot.windows.add(window);
+            snapshot.images.add(WorkspaceFile.ImageSource.of(window));
+            snapshot.states.add(window.getImageState());
+        }
+        snapshot.records.addAll(pendingRecords);
+        pendingRecords = new ArrayList<>();
+        structureChanged = false;
+        stateChanged = false;
+        return snapshot;
+    }
+
+    /**
+     * The checkpoint of a snapshot was not written. Its records go back in front of the newer ones,
+     * so they still reach the old journal, and the checkpoint is retried with the next tick.
+     */
+    private synchronized void restoreSnapshot(Snapshot snapshot) {
+        pendingRecords.addAll(0, snapshot.records);
+        structureChanged = true;
+    }
+
+    /**
+     * Images behind a tile source and images too large to be decoded whole are stored raw,
+     * so that they can be saved a strip at a time and the next restore can read them tile by tile.
+     */
+    private static ImageCodec chooseCodec(WorkspaceFile.ImageSource image) {
+        return image.getTileSource() != null
+                || (long) image.getWidth() * image.getHeight() > TileSource.FULL_DECODE_MAX_PIXELS
+                ? ImageCodec.RAW : CODEC;
+    }
+
+    /**
+     * Save a snapshot and start a new journal on top of it. The old journal is kept until the save succeeded,
+     * so skipped and failed checkpoints leave the old checkpoint and journal consistent with each other.
+     */
+    private void checkpoint(Snapshot snapshot) {
+        for (ReferenceImage window : snapshot.windows) {
+            if (!window.isImageLoaded()) {
+                // restore still in progress, the file on disk already has these images
+                restoreSnapshot(snapshot);
+                return;
+            }
+        }
+        long generation;
+        try {
+            generation = WorkspaceFile.save(path, snapshot.images, snapshot.states, AutoSaver::chooseCodec);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            restoreSnapshot(snapshot);
+            retryTime = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MS;
+            e.printStackTrace();
+            return;
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+        // the old journal belongs to a checkpoint that is gone now
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+        journalPositions = snapshot.positions;
+        try {
+            journal = WorkspaceJournal.create(path, generation);
+        } catch (IOException e) {
+            // newer records stay pending until a checkpoint succeeds together with its journal
+            synchronized (this) {
+                structureChanged = true;
+            }
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.github.x6ud.puppetview.workspace;
+
+import com.github.x6ud.puppetview.misc.TileSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tile source backed by a blob of a workspace file. Saving a window with such a source copies the blob as it is,
+ * instead of reading the whole image back and encoding it again.
+ * <p>
+ * The channel is kept open until {@link #close()}, so the blob stays readable even after the workspace
+ * file is rewritten and renamed over.
+ */
+abstract class BlobTileSource implements TileSource {
+
+    final FileChannel channel;
+    final WorkspaceFile.Entry entry;
+
+    BlobTileSource(String path, WorkspaceFile.Entry entry) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        this.entry = entry;
+    }
+
+    @Override
+    public int getWidth() {
+        return entry.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return entry.height;
+    }
+
+    /**
+     * The hash from the index, so the blob is not read to hash it again.
+     */
+    @Override
+    public long hash() throws IOException {
+        return entry.hash != 0 ? entry.hash : TileSource.super.hash();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+}
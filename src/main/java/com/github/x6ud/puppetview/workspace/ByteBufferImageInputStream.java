@@ -0,0 +1,59 @@
+package com.github.x6ud.puppetview.workspace;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lets ImageIO readers decode straight from a (mapped) buffer,
+ * without the byte array copy or the cache file of a stream-based ImageInputStream.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+    private final int base;
+
+    ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.base = buffer.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        ++streamPos;
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit() - base;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        super.seek(pos);
+        buffer.position(base + (int) Math.min(pos, length()));
+    }
+
+}
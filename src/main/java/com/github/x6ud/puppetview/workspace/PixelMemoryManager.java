@@ -0,0 +1,494 @@
+package com.github.x6ud.puppetview.workspace;
+
+import com.github.x6ud.puppetview.misc.CompatibleImages;
+import com.github.x6ud.puppetview.misc.ImageInterner;
+import com.github.x6ud.puppetview.misc.ImageUtils;
+import com.github.x6ud.puppetview.misc.OffHeapImages;
+import com.github.x6ud.puppetview.misc.PerfLog;
+import com.github.x6ud.puppetview.misc.TileSource;
+import com.github.x6ud.puppetview.window.ReferenceImage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the full resolution pixels held by all windows within a budget
+ * (system property <code>puppetview.pixelBudgetMB</code>, default 1024).
+ * <p>
+ * Once the budget is exceeded, images whose windows are all hidden or collapsed are written to a temporary
+ * spill file as {@link ImageCodec#RAW} blobs, largest first. Their windows keep a thumbnail backed by the spilled
+ * blob, the same way large images are shown from an overview and a {@link TileSource}, and tiles read only the rows
+ * they need. The full image is read back as soon as one of the windows is shown or expanded. Filtered copies and
+ * mipmaps are not counted here, they have their own capped caches.
+ * <p>
+ * A blob is freed once no window shows it anymore. Freed space is reused by later spills, and the file is
+ * truncated when its end is freed.
+ * <p>
+ * All methods must be called on the EDT. Spilling and reading back run on background threads.
+ */
+public class PixelMemoryManager {
+
+    private static final long DEFAULT_BUDGET_MB = 1024;
+    private static final int THUMBNAIL_SIZE = 512;
+    private static final int WORKER_THREADS = 2;
+
+    private static class Blob {
+        final long offset;
+        final long length;
+        final long hash;
+        final int width;
+        final int height;
+        final int type;
+        // spill sources and pending reads using the blob, guarded by the manager
+        int users = 1;
+
+        Blob(long offset, long length, long hash, int width, int height, int type) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+    }
+
+    private final long budget;
+    private final Supplier<List<ReferenceImage>> windowList;
+    private final ImageInterner interner;
+    private final ExecutorService executor = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "pixel-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // EDT only
+    private final Map<ReferenceImage, Boolean> inactive = new IdentityHashMap<>();
+    private final Set<BufferedImage> evicting = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Blob> restoring = new HashSet<>();
+    private boolean checkScheduled = false;
+
+    // guarded by this
+    private FileChannel spillFile;
+    private long spillSize = 0;
+    private final Map<Long, Blob> spilled = new HashMap<>();
+    // free extents of the spill file by offset, never adjacent to each other or to the end of the file
+    private final TreeMap<Long, Long> freeExtents = new TreeMap<>();
+
+    /**
+     * @param windowList supplies the current windows, called on the EDT only
+     * @param interner   restored images are shared with windows already showing the same content
+     */
+    public PixelMemoryManager(Supplier<List<ReferenceImage>> windowList, ImageInterner interner) {
+        this.budget = Long.getLong("puppetview.pixelBudgetMB", DEFAULT_BUDGET_MB) * 1024 * 1024;
+        this.windowList = windowList;
+        this.interner = interner;
+    }
+
+    /**
+     * Called whenever the state of a window changed. Only a change of hidden or collapsed matters.
+     */
+    public void stateChanged(ReferenceImage window) {
+        boolean nowInactive = isInactive(window);
+        Boolean wasInactive = inactive.put(window, nowInactive);
+        if (wasInactive != null && wasInactive == nowInactive) {
+            return;
+        }
+        if (nowInactive) {
+            scheduleCheck();
+        } else {
+            restore(window);
+        }
+    }
+
+    /**
+     * Called when windows were opened or their images loaded.
+     */
+    public void structureChanged() {
+        scheduleCheck();
+    }
+
+    public void removed(ReferenceImage window) {
+        inactive.remove(window);
+    }
+
+    /* ============================================== */
+
+    private static boolean isInactive(ReferenceImage window) {
+        return !window.isVisible() || window.isCollapsed();
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+
+    private void scheduleCheck() {
+        if (!checkScheduled) {
+            checkScheduled = true;
+            SwingUtilities.invokeLater(this::check);
+        }
+    }
+
+    private void check() {
+        checkScheduled = false;
+        Map<BufferedImage, List<ReferenceImage>> windowsByImage = new IdentityHashMap<>();
+        for (ReferenceImage window : windowList.get()) {
+            if (window.isImageLoaded()) {
+                windowsByImage.computeIfAbsent(window.getImage(), image -> new ArrayList<>()).add(window);
+            }
+        }
+        long total = 0;
+        for (BufferedImage image : windowsByImage.keySet()) {
+            total += sizeOf(image);
+        }
+        if (total <= budget) {
+            return;
+        }
+
+        List<BufferedImage> candidates = new ArrayList<>();
+        for (Map.Entry<BufferedImage, List<ReferenceImage>> entry : windowsByImage.entrySet()) {
+            BufferedImage image = entry.getKey();
+            if (evicting.contains(image) || Math.max(image.getWidth(), image.getHeight()) <= THUMBNAIL_SIZE) {
+                continue;
+            }
+            boolean evictable = true;
+            for (ReferenceImage window : entry.getValue()) {
+                if (window.getTileSource() != null || !isInactive(window)) {
+                    evictable = false;
+                    break;
+                }
+            }
+            if (evictable) {
+                candidates.add(image);
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(sizeOf(b), sizeOf(a)));
+        for (BufferedImage image : candidates) {
+            if (total <= budget) {
+                break;
+            }
+            total -= sizeOf(image);
+            evict(image, windowsByImage.get(image));
+        }
+    }
+
+    private void evict(BufferedImage image, List<ReferenceImage> windows) {
+        evicting.add(image);
+        executor.submit(() -> {
+            BufferedImage thumbnail = null;
+            Blob blob = null;
+            try {
+                long start = System.nanoTime();
+                long hash = windows.get(0).getImageHash();
+                blob = spill(image, hash);
+                int factor = (Math.max(image.getWidth(), image.getHeight()) + THUMBNAIL_SIZE - 1) / THUMBNAIL_SIZE;
+                thumbnail = CompatibleImages.normalize(ImageUtils.downsample(image, factor));
+                PerfLog.elapsed("Spilled " + image.getWidth() + "x" + image.getHeight(), start);
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (blob != null) {
+                    release(blob);
+                    blob = null;
+                }
+            }
+            BufferedImage spilledThumbnail = thumbnail;
+            Blob spilledBlob = blob;
+            SwingUtilities.invokeLater(() -> {
+                evicting.remove(image);
+                if (spilledBlob == null) {
+                    return;
+                }
+                for (ReferenceImage window : windows) {
+                    // skip windows that were shown, closed or got another image in the meantime
+                    if (window.isDisplayable()
+                            && window.getImage() == image
+                            && window.getTileSource() == null
+                            && isInactive(window)) {
+                        window.setImage(spilledThumbnail, new SpillSource(spilledBlob, image.getWidth(), image.getHeight()));
+                    }
+                }
+                // the sources hold the blob from now on, it is freed right away if no window took it
+                release(spilledBlob);
+            });
+        });
+    }
+
+    private void restore(ReferenceImage window) {
+        if (!(window.getTileSource() instanceof SpillSource)) {
+            return;
+        }
+        SpillSource source = (SpillSource) window.getTileSource();
+        if (!restoring.add(source.blob)) {
+            return;
+        }
+        // kept while reading, even if all windows showing the blob are closed in the meantime
+        acquire(source.blob);
+        executor.submit(() -> {
+            BufferedImage image = null;
+            try {
+                long start = System.nanoTime();
+                image = source.readAll();
+                if (source.blob.hash != 0) {
+                    image = interner.intern(image, source.blob.hash);
+                }
+                PerfLog.elapsed("Restored " + image.getWidth() + "x" + image.getHeight(), start);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            BufferedImage restored = image;
+            SwingUtilities.invokeLater(() -> {
+                restoring.remove(source.blob);
+                release(source.blob);
+                if (restored == null) {
+                    return;
+                }
+                // every window showing this blob gets the full image back
+                for (ReferenceImage other : windowList.get()) {
+                    if (other.getTileSource() instanceof SpillSource
+                            && ((SpillSource) other.getTileSource()).blob == source.blob) {
+                        other.setImage(restored);
+                    }
+                }
+                scheduleCheck();
+            });
+        });
+    }
+
+    /**
+     * Write the image to the spill file, or reuse the blob already written for the same content.
+     * The caller holds the returned blob until it calls {@link #release(Blob)}.
+     */
+    private Blob spill(BufferedImage image, long hash) throws IOException {
+        int type = ImageCodec.getStoredType(image);
+        Blob known;
+        synchronized (this) {
+            known = hash != 0 ? spilled.get(hash) : null;
+            if (known != null) {
+                ++known.users;
+            }
+        }
+        if (known != null) {
+            if (contains(known, image, type)) {
+                return known;
+            }
+            // same hash, other pixels
+            release(known);
+        }
+        long length = RawTileSource.HEADER_SIZE + 4L * image.getWidth() * image.getHeight();
+        Blob blob;
+        FileChannel channel;
+        synchronized (this) {
+            if (spillFile == null) {
+                spillFile = FileChannel.open(
+                        Files.createTempFile("puppetview-spill", ".tmp"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE
+                );
+            }
+            channel = spillFile;
+            blob = new Blob(allocate(length), length, hash, image.getWidth(), image.getHeight(), type);
+        }
+        // written outside the lock, the extent belongs to this blob alone
+        try {
+            OutputStream out = new BufferedOutputStream(new ChannelOutput(channel, blob.offset), 1 << 20);
+            ImageCodec.writeRaw(image, out);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            release(blob);
+            throw e;
+        }
+        synchronized (this) {
+            if (hash != 0) {
+                spilled.putIfAbsent(hash, blob);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Whether a blob holds exactly the pixels of the image, compared a strip at a time.
+     */
+    private boolean contains(Blob blob, BufferedImage image, int type) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (blob.width != width || blob.height != height || blob.type != type) {
+            return false;
+        }
+        int stripHeight = TileSource.getStripHeight(width);
+        for (int y = 0; y < height; y += stripHeight) {
+            Rectangle region = new Rectangle(0, y, width, Math.min(stripHeight, height - y));
+            BufferedImage strip = RawTileSource.readRegion(
+                    getSpillFile(), blob.offset + RawTileSource.HEADER_SIZE, width, type, region, 1
+            );
+            if (!ImageUtils.samePixels(strip, image.getSubimage(region.x, region.y, region.width, region.height))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void acquire(Blob blob) {
+        ++blob.users;
+    }
+
+    /**
+     * Drop one use of a blob, freeing its space once it has no users left.
+     */
+    private synchronized void release(Blob blob) {
+        if (--blob.users > 0) {
+            return;
+        }
+        if (blob.hash != 0 && spilled.get(blob.hash) == blob) {
+            spilled.remove(blob.hash);
+        }
+        long offset = blob.offset;
+        long length = blob.length;
+        Map.Entry<Long, Long> before = freeExtents.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            offset = before.getKey();
+            length += before.getValue();
+            freeExtents.remove(offset);
+        }
+        Long after = freeExtents.remove(offset + length);
+        if (after != null) {
+            length += after;
+        }
+        if (offset + length < spillSize) {
+            freeExtents.put(offset, length);
+            return;
+        }
+        spillSize = offset;
+        try {
+            spillFile.truncate(spillSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Offset of a new extent, the first free one large enough or the end of the file.
+     */
+    private long allocate(long length) {
+        for (Map.Entry<Long, Long> extent : freeExtents.entrySet()) {
+            long offset = extent.getKey();
+            long free = extent.getValue();
+            if (free >= length) {
+                freeExtents.remove(offset);
+                if (free > length) {
+                    freeExtents.put(offset + length, free - length);
+                }
+                return offset;
+            }
+        }
+        long offset = spillSize;
+        spillSize += length;
+        return offset;
+    }
+
+    private synchronized FileChannel getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * Writes at increasing positions of a channel without moving its shared position.
+     */
+    private static class ChannelOutput extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelOutput(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Full resolution pixels of an evicted image, read a row span at a time from the spilled blob.
+     * Closing the source gives up its use of the blob.
+     */
+    private class SpillSource implements TileSource {
+        final Blob blob;
+        final int width;
+        final int height;
+        private boolean closed = false;
+
+        SpillSource(Blob blob, int width, int height) {
+            this.blob = blob;
+            this.width = width;
+            this.height = height;
+            acquire(blob);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * The whole image, read in strips straight into its raster.
+         */
+        BufferedImage readAll() throws IOException {
+            BufferedImage image = OffHeapImages.createImage(width, height, blob.type);
+            WritableRaster raster = image.getRaster();
+            int stripHeight = TileSource.getStripHeight(width);
+            for (int y = 0; y < height; y += stripHeight) {
+                BufferedImage strip = read(new Rectangle(0, y, width, Math.min(stripHeight, height - y)), 1);
+                raster.setDataElements(0, y, strip.getRaster());
+            }
+            return image;
+        }
+
+        @Override
+        public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+            return RawTileSource.readRegion(getSpillFile(), blob.offset + RawTileSource.HEADER_SIZE, width, blob.type,
+                    region, subsampling);
+        }
+
+        @Override
+        public long hash() throws IOException {
+            return blob.hash != 0 ? blob.hash : TileSource.super.hash();
+        }
+
+        @Override
+        public void close() {
+            synchronized (PixelMemoryManager.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release(blob);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.github.x6ud.puppetview.workspace;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Stands in for an image whose blob could not be loaded, e.g. for lack of memory. Every tile is plain grey,
+ * and the blob is kept so that the next save writes it unchanged instead of dropping the image.
+ */
+class PlaceholderTileSource extends BlobTileSource {
+
+    private static final int COLOR = 0x808080;
+
+    PlaceholderTileSource(String path, WorkspaceFile.Entry entry) throws IOException {
+        super(path, entry);
+    }
+
+    /**
+     * The hash from the index, 0 if it has none. Hashing the placeholder pixels would be meaningless.
+     */
+    @Override
+    public long hash() {
+        return entry.hash;
+    }
+
+    @Override
+    public BufferedImage read(Rectangle region, int subsampling) {
+        int outWidth = (region.width + subsampling - 1) / subsampling;
+        int outHeight = (region.height + subsampling - 1) / subsampling;
+        BufferedImage image = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[outWidth];
+        Arrays.fill(row, COLOR);
+        for (int y = 0; y < outHeight; ++y) {
+            image.getRaster().setDataElements(0, y, outWidth, 1, row);
+        }
+        return image;
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.github.x6ud.puppetview.workspace;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads regions of a {@link ImageCodec#RAW} blob straight from the workspace file, one row span at a time.
+ */
+class RawTileSource extends BlobTileSource {
+
+    static final int HEADER_SIZE = 9;
+
+    private final long pixelsOffset;
+    private final int width;
+    private final int height;
+    private final int type;
+
+    RawTileSource(String path, WorkspaceFile.Entry entry) throws IOException {
+        super(path, entry);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, entry.offset);
+            header.flip();
+            width = header.getInt();
+            height = header.getInt();
+            type = header.get();
+            if (width != entry.width || height != entry.height) {
+                throw new IOException("Raw blob header does not match its index entry at " + entry.offset);
+            }
+            pixelsOffset = entry.offset + HEADER_SIZE;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+        return readRegion(channel, pixelsOffset, width, type, region, subsampling);
+    }
+
+    /**
+     * Read a region of the pixels of a RAW blob from any channel, where the pixels start at the given offset.
+     */
+    static BufferedImage readRegion(FileChannel channel, long pixelsOffset, int width, int type,
+                                    Rectangle region, int subsampling) throws IOException {
+        int outWidth = (region.width + subsampling - 1) / subsampling;
+        int outHeight = (region.height + subsampling - 1) / subsampling;
+        // only the pixels from the first to the last kept column of a row are read
+        int span = (outWidth - 1) * subsampling + 1;
+        BufferedImage image = new BufferedImage(outWidth, outHeight, type);
+        WritableRaster raster = image.getRaster();
+        ByteBuffer buffer = ByteBuffer.allocate(span * 4).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer pixels = buffer.asIntBuffer();
+        int[] row = new int[outWidth];
+        for (int oy = 0; oy < outHeight; ++oy) {
+            long y = region.y + (long) oy * subsampling;
+            buffer.clear();
+            readFully(channel, buffer, pixelsOffset + 4 * (y * width + region.x));
+            if (subsampling == 1) {
+                pixels.rewind();
+                pixels.get(row);
+            } else {
+                for (int ox = 0; ox < outWidth; ++ox) {
+                    row[ox] = pixels.get(ox * subsampling);
+                }
+            }
+            ImageCodec.clearUnusedByte(type, row);
+            raster.setDataElements(0, oy, outWidth, 1, row);
+        }
+        return image;
+    }
+
+}
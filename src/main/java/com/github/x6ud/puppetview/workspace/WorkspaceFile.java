@@ -0,0 +1,839 @@
+package com.github.x6ud.puppetview.workspace;
+
+import com.github.x6ud.puppetview.misc.PerfLog;
+import com.github.x6ud.puppetview.misc.TileSource;
+import com.github.x6ud.puppetview.window.ReferenceImage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Indexed workspace container.
+ * <p>
+ * Layout:
+ * <pre>
+ * header   int magic, int version, long indexOffset
+ * blobs    encoded images, one after another
+ * index    long generation, int count, then per image: long offset, long length, byte codec,
+ *          int width, int height, long hash, int stateLength, state
+ * </pre>
+ * The index is always the last thing written, so replacing an image only appends a new blob and a new index
+ * and then patches <code>indexOffset</code> in the header. Old blobs stay in place until the file is rewritten.
+ * Appended data is flushed to disk before the header is patched, and full rewrites go to a temp file that is
+ * renamed over the old one, so a crash at any point leaves the previous index readable.
+ * <p>
+ * Every committed index gets a new random <code>generation</code>, which {@link WorkspaceJournal} uses to tell
+ * whether its records belong to this index.
+ * Version 1 files have no <code>hash</code> field, versions before 3 no <code>generation</code>,
+ * versions before 4 no <code>codec</code> (all blobs are PNG), and versions before 5 have an int <code>length</code>.
+ * See {@link ImageCodec} for the blob encodings.
+ */
+public class WorkspaceFile implements Closeable {
+
+    private static final int MAGIC = 0x50565753; // "PVWS"
+    private static final int VERSION = 5;
+    private static final int HEADER_SIZE = 16;
+    private static final int VERSION_POSITION = 4;
+    // blobs at least this large are decoded from a memory mapping instead of a heap copy
+    private static final int MAP_THRESHOLD = 1 << 20;
+    // rewrite the whole file once unreachable blobs and superseded indexes take more than this share of it
+    private static final double MAX_GARBAGE_RATIO = 0.5;
+
+    private static final int ENCODER_THREADS = Runtime.getRuntime().availableProcessors();
+    // at most this many encoded blobs are held in memory waiting to be written
+    private static final int MAX_PENDING_BLOBS = ENCODER_THREADS * 2;
+    // and at most about this many bytes of pixels, images read back from tile sources can be huge
+    private static final long MAX_PENDING_PIXEL_BYTES = 256L * 1024 * 1024;
+    private static ExecutorService encoderPool;
+
+    public static class Entry {
+        public long offset;
+        public long length;
+        public ImageCodec codec = ImageCodec.PNG;
+        public int width;
+        public int height;
+        /**
+         * Pixel content hash, 0 if unknown.
+         */
+        public long hash;
+        public ReferenceImage.ImageState state;
+
+        private void copyBlob(Entry blob) {
+            offset = blob.offset;
+            length = blob.length;
+            codec = blob.codec;
+        }
+    }
+
+    /**
+     * An image to be saved. The pixels are only requested if the image actually has to be encoded,
+     * and then on an encoder thread.
+     */
+    public interface ImageSource {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Pixel content hash, 0 if unknown.
+         */
+        long getHash();
+
+        BufferedImage getImage() throws IOException;
+
+        /**
+         * Source the full resolution pixels are read from, null if the image is held in memory.
+         * Blobs behind sources opened by a workspace are copied as they are instead of being encoded.
+         */
+        default TileSource getTileSource() {
+            return null;
+        }
+
+        /**
+         * Capture the image of a window. Call on the EDT, the returned source can be used from any thread.
+         */
+        static ImageSource of(ReferenceImage window) {
+            BufferedImage image = window.getImage();
+            TileSource tileSource = window.getTileSource();
+            return new ImageSource() {
+                @Override
+                public int getWidth() {
+                    return tileSource != null ? tileSource.getWidth() : image.getWidth();
+                }
+
+                @Override
+                public int getHeight() {
+                    return tileSource != null ? tileSource.getHeight() : image.getHeight();
+                }
+
+                @Override
+                public long getHash() {
+                    if (tileSource instanceof BlobTileSource) {
+                        return ((BlobTileSource) tileSource).entry.hash;
+                    }
+                    // computed on first use, so not on the EDT
+                    return window.getImageHash();
+                }
+
+                @Override
+                public BufferedImage getImage() throws IOException {
+                    return tileSource != null ? tileSource.read(new Rectangle(0, 0, getWidth(), getHeight()), 1) : image;
+                }
+
+                @Override
+                public TileSource getTileSource() {
+                    return tileSource;
+                }
+            };
+        }
+
+        static ImageSource of(BufferedImage image, long hash) {
+            return new ImageSource() {
+                @Override
+                public int getWidth() {
+                    return image.getWidth();
+                }
+
+                @Override
+                public int getHeight() {
+                    return image.getHeight();
+                }
+
+                @Override
+                public long getHash() {
+                    return hash;
+                }
+
+                @Override
+                public BufferedImage getImage() {
+                    return image;
+                }
+            };
+        }
+    }
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final boolean writable;
+    private final List<Entry> entries = new ArrayList<>();
+    private long generation;
+    private long indexOffset;
+
+    private WorkspaceFile(String path, RandomAccessFile file, boolean writable) {
+        this.path = path;
+        this.file = file;
+        this.writable = writable;
+    }
+
+    /**
+     * Check whether the file starts with the container header.
+     * Returns false for legacy workspaces written with Java serialization.
+     */
+    public static boolean isWorkspaceFile(String path) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a workspace read-only and read its index. Images are not decoded until {@link #readImage(Entry)}.
+     * Works for workspaces on read-only media or without write permission.
+     */
+    public static WorkspaceFile open(String path) throws IOException {
+        return open(path, false);
+    }
+
+    /**
+     * Open a workspace for {@link #replaceImage(int, BufferedImage, long)} and
+     * {@link #replaceState(int, ReferenceImage.ImageState)}.
+     */
+    public static WorkspaceFile openForUpdate(String path) throws IOException {
+        return open(path, true);
+    }
+
+    private static WorkspaceFile open(String path, boolean writable) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+        try {
+            if (file.readInt() != MAGIC) {
+                throw new IOException("Not a workspace file: " + path);
+            }
+            int version = file.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported workspace version " + version + ": " + path);
+            }
+            long indexOffset = file.readLong();
+            WorkspaceFile workspace = new WorkspaceFile(path, file, writable);
+            workspace.indexOffset = indexOffset;
+            workspace.readIndex(version, indexOffset);
+            return workspace;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a new workspace, replacing the file at the given path.
+     * Images are encoded concurrently on a bounded pool and written in order as they finish.
+     * The file is written under a temporary name, flushed to disk and then renamed over the target.
+     *
+     * @param codecs chooses the encoding of each image
+     * @return generation of the written index
+     */
+    public static long write(String path,
+                             List<ImageSource> images,
+                             List<ReferenceImage.ImageState> states,
+                             Function<ImageSource, ImageCodec> codecs) throws IOException {
+        Path temp = Paths.get(path + ".tmp");
+        long generation = writeTemp(temp, images, states, codecs, null);
+        replace(temp, Paths.get(path));
+        return generation;
+    }
+
+    /**
+     * Save a workspace incrementally.
+     * <p>
+     * If the file already is a workspace, only images whose hash is not found in its index are encoded and
+     * appended, followed by a new index. Saving after moving or rotating windows therefore costs one index.
+     * A stored blob is only reused if it has the codec chosen for its image, otherwise the image is encoded again.
+     * Blobs behind a workspace tile source are the exception and are always copied as they are,
+     * because those images are not held in memory as a whole.
+     * The file is written from scratch when it does not exist yet. Once it is mostly unreachable blobs and
+     * superseded indexes, it is compacted: rewritten with the blobs still in use copied over as they are.
+     *
+     * @param codecs chooses the encoding of each image
+     * @return generation of the written index
+     */
+    public static long save(String path,
+                            List<ImageSource> images,
+                            List<ReferenceImage.ImageState> states,
+                            Function<ImageSource, ImageCodec> codecs) throws IOException {
+        if (isWorkspaceFile(path)) {
+            Path temp = Paths.get(path + ".tmp");
+            long generation;
+            try (WorkspaceFile workspace = openForUpdate(path)) {
+                if (workspace.update(images, states, codecs)) {
+                    return workspace.generation;
+                }
+                generation = writeTemp(temp, images, states, codecs, workspace);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return write(path, images, states, codecs);
+            }
+            // the old file must be closed before it can be replaced on Windows
+            replace(temp, Paths.get(path));
+            return generation;
+        }
+        return write(path, images, states, codecs);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Generation of the current index, 0 for files written before version 3.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Decode a single image without touching the others. Safe to call from several threads at once.
+     * <p>
+     * Large blobs are memory-mapped and decoded in place, so the heap only holds the decoded pixels.
+     * The mapping is released right after decoding, because a mapped file can not be replaced on Windows.
+     * Blobs of 2 GB and more can only be read through {@link #openTileSource(Entry)}.
+     */
+    public BufferedImage readImage(Entry entry) throws IOException {
+        if (entry.length > Integer.MAX_VALUE) {
+            throw new IOException("Image blob too large to decode whole at " + entry.offset);
+        }
+        FileChannel channel = file.getChannel();
+        ByteBuffer data;
+        if (entry.length >= MAP_THRESHOLD) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+        } else {
+            data = ByteBuffer.allocate((int) entry.length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, entry.offset + data.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            data.flip();
+        }
+        try {
+            long start = System.nanoTime();
+            BufferedImage image = entry.codec.decode(data);
+            if (image == null) {
+                throw new IOException("Unreadable image blob at " + entry.offset);
+            }
+            logThroughput("decode", entry.codec, image, entry.length, start);
+            return image;
+        } finally {
+            if (data instanceof MappedByteBuffer) {
+                unmap((MappedByteBuffer) data);
+            }
+        }
+    }
+
+    /**
+     * Open a reader for regions of a {@link ImageCodec#RAW} blob, null for other codecs.
+     * The reader stays usable after this file is closed and must be closed itself.
+     */
+    public TileSource openTileSource(Entry entry) throws IOException {
+        return entry.codec == ImageCodec.RAW ? new RawTileSource(path, entry) : null;
+    }
+
+    /**
+     * Open a stand-in for an image that could not be loaded. It reads as plain grey, and saving a window
+     * showing it writes the original blob unchanged. Must be closed like any other tile source.
+     */
+    public TileSource openPlaceholder(Entry entry) throws IOException {
+        return new PlaceholderTileSource(path, entry);
+    }
+
+    /**
+     * Replace one image. The new blob and index are appended and the header is patched last,
+     * so the previous index stays valid if writing fails halfway.
+     */
+    public void replaceImage(int index, BufferedImage image, long hash) throws IOException {
+        checkWritable();
+        Entry entry = entries.get(index);
+        entry.width = image.getWidth();
+        entry.height = image.getHeight();
+        entry.hash = hash;
+        file.seek(file.length());
+        writeBlob(file, entry, encode(image, entry.codec));
+        commitIndex();
+    }
+
+    /**
+     * Replace the state record of one image. Only a new index is appended.
+     */
+    public void replaceState(int index, ReferenceImage.ImageState state) throws IOException {
+        checkWritable();
+        entries.get(index).state = state;
+        file.seek(file.length());
+        commitIndex();
+    }
+
+    /**
+     * Replace the whole image list, reusing blobs already present in this file.
+     *
+     * @return false if nothing was written because the file should be compacted instead
+     */
+    private boolean update(List<ImageSource> images,
+                           List<ReferenceImage.ImageState> states,
+                           Function<ImageSource, ImageCodec> codecs) throws IOException {
+        Map<Long, Entry> stored = new HashMap<>();
+        for (Entry entry : entries) {
+            if (entry.hash != 0) {
+                stored.put(entry.hash, entry);
+            }
+        }
+
+        List<Entry> newEntries = new ArrayList<>();
+        List<ImageSource> blobImages = new ArrayList<>();
+        List<Entry> blobEntries = new ArrayList<>();
+        List<BlobTileSource> copiedBlobs = new ArrayList<>();
+        List<Entry> copiedEntries = new ArrayList<>();
+        Map<Long, Entry> live = new HashMap<>();
+        long liveBytes = 0;
+        for (int i = 0; i < images.size(); ++i) {
+            Entry entry = createEntry(images.get(i), states.get(i));
+            newEntries.add(entry);
+            if (entry.hash == 0) {
+                return false;
+            }
+            if (live.containsKey(entry.hash)) {
+                continue;
+            }
+            live.put(entry.hash, entry);
+            Entry sameContent = stored.get(entry.hash);
+            BlobTileSource blob = getStoredBlob(images.get(i), entry);
+            if (isReusable(sameContent, entry, images.get(i), codecs)) {
+                entry.copyBlob(sameContent);
+                liveBytes += entry.length;
+            } else if (blob != null) {
+                copiedBlobs.add(blob);
+                copiedEntries.add(entry);
+            } else {
+                blobImages.add(images.get(i));
+                blobEntries.add(entry);
+            }
+        }
+        // dropped blobs and superseded indexes, everything before the current index that is not still in use
+        long garbage = indexOffset - HEADER_SIZE - liveBytes;
+        if (garbage > file.length() * MAX_GARBAGE_RATIO) {
+            return false;
+        }
+
+        file.seek(file.length());
+        for (int i = 0; i < copiedBlobs.size(); ++i) {
+            copyBlob(copiedBlobs.get(i).channel, copiedBlobs.get(i).entry, file, copiedEntries.get(i));
+        }
+        appendBlobs(file, blobImages, blobEntries, codecs);
+        copyBlobPositions(newEntries, live);
+        entries.clear();
+        entries.addAll(newEntries);
+        commitIndex();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /* ============================================== */
+
+    private void checkWritable() throws IOException {
+        if (!writable) {
+            throw new IOException("Workspace opened read-only: " + path);
+        }
+    }
+
+    private static synchronized ExecutorService getEncoderPool() {
+        if (encoderPool == null) {
+            encoderPool = Executors.newFixedThreadPool(ENCODER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "workspace-encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return encoderPool;
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Write a complete workspace to a temp file. Blobs of the same content found in the previous workspace
+     * or behind the tile source of an image are copied from there instead of being encoded again.
+     *
+     * @param previous may be null
+     * @return generation of the written index
+     */
+    private static long writeTemp(Path temp,
+                                  List<ImageSource> images,
+                                  List<ReferenceImage.ImageState> states,
+                                  Function<ImageSource, ImageCodec> codecs,
+                                  WorkspaceFile previous) throws IOException {
+        Map<Long, Entry> stored = new HashMap<>();
+        if (previous != null) {
+            for (Entry entry : previous.entries) {
+                if (entry.hash != 0) {
+                    stored.put(entry.hash, entry);
+                }
+            }
+        }
+        long generation = newGeneration();
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeLong(0);
+
+            List<Entry> entries = new ArrayList<>();
+            List<ImageSource> blobImages = new ArrayList<>();
+            List<Entry> blobEntries = new ArrayList<>();
+            Map<Long, Entry> written = new HashMap<>();
+            for (int i = 0; i < images.size(); ++i) {
+                Entry entry = createEntry(images.get(i), states.get(i));
+                if (entry.hash == 0 || !written.containsKey(entry.hash)) {
+                    written.put(entry.hash, entry);
+                    Entry sameContent = entry.hash != 0 ? stored.get(entry.hash) : null;
+                    BlobTileSource blob = getStoredBlob(images.get(i), entry);
+                    if (isReusable(sameContent, entry, images.get(i), codecs)) {
+                        copyBlob(previous.file.getChannel(), sameContent, file, entry);
+                    } else if (blob != null) {
+                        copyBlob(blob.channel, blob.entry, file, entry);
+                    } else {
+                        blobImages.add(images.get(i));
+                        blobEntries.add(entry);
+                    }
+                }
+                entries.add(entry);
+            }
+            appendBlobs(file, blobImages, blobEntries, codecs);
+            copyBlobPositions(entries, written);
+            commitIndex(file, entries, generation);
+        }
+        return generation;
+    }
+
+    private static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Whether a stored blob of the same content can be used for an image as it is.
+     */
+    private static boolean isReusable(Entry stored,
+                                      Entry entry,
+                                      ImageSource image,
+                                      Function<ImageSource, ImageCodec> codecs) {
+        return stored != null
+                && stored.width == entry.width
+                && stored.height == entry.height
+                && stored.codec == codecs.apply(image);
+    }
+
+    /**
+     * The workspace blob an image is read from, if it holds exactly that image.
+     */
+    private static BlobTileSource getStoredBlob(ImageSource image, Entry entry) {
+        TileSource tileSource = image.getTileSource();
+        if (!(tileSource instanceof BlobTileSource)) {
+            return null;
+        }
+        BlobTileSource blob = (BlobTileSource) tileSource;
+        return blob.entry.width == entry.width && blob.entry.height == entry.height ? blob : null;
+    }
+
+    /**
+     * Append a blob of another file at the file pointer as it is.
+     */
+    private static void copyBlob(FileChannel source, Entry blob, RandomAccessFile to, Entry entry) throws IOException {
+        entry.offset = to.getFilePointer();
+        entry.length = blob.length;
+        entry.codec = blob.codec;
+        // transferTo writes at and advances the channel position, which is the file pointer
+        FileChannel target = to.getChannel();
+        long copied = 0;
+        while (copied < blob.length) {
+            long count = source.transferTo(blob.offset + copied, blob.length - copied, target);
+            if (count <= 0) {
+                throw new EOFException();
+            }
+            copied += count;
+        }
+    }
+
+    private static Entry createEntry(ImageSource image, ReferenceImage.ImageState state) {
+        Entry entry = new Entry();
+        entry.width = image.getWidth();
+        entry.height = image.getHeight();
+        entry.hash = image.getHash();
+        entry.state = state;
+        return entry;
+    }
+
+    /**
+     * Encode images concurrently and append them at the file pointer in order,
+     * filling in the offset and length of the matching entries.
+     * {@link ImageCodec#RAW} blobs are not encoded ahead, but streamed to the file when their turn comes,
+     * images behind a tile source a strip at a time.
+     */
+    private static void appendBlobs(RandomAccessFile file,
+                                    List<ImageSource> images,
+                                    List<Entry> entries,
+                                    Function<ImageSource, ImageCodec> codecs) throws IOException {
+        ExecutorService pool = getEncoderPool();
+        List<Future<byte[]>> pending = new ArrayList<>();
+        int submitted = 0;
+        long pendingBytes = 0;
+        try {
+            for (int i = 0; i < images.size(); ++i) {
+                for (; submitted < images.size() && submitted < i + MAX_PENDING_BLOBS; ++submitted) {
+                    ImageSource image = images.get(submitted);
+                    ImageCodec codec = codecs.apply(image);
+                    if (codec == ImageCodec.RAW) {
+                        entries.get(submitted).codec = codec;
+                        pending.add(null);
+                        continue;
+                    }
+                    long bytes = 4L * image.getWidth() * image.getHeight();
+                    if (submitted > i && pendingBytes + bytes > MAX_PENDING_PIXEL_BYTES) {
+                        break;
+                    }
+                    pendingBytes += bytes;
+                    entries.get(submitted).codec = codec;
+                    pending.add(pool.submit(() -> encode(image.getImage(), codec)));
+                }
+                if (pending.get(i) == null) {
+                    writeRawBlob(file, entries.get(i), images.get(i));
+                    continue;
+                }
+                writeBlob(file, entries.get(i), await(pending.get(i)));
+                pending.set(i, null);
+                pendingBytes -= 4L * images.get(i).getWidth() * images.get(i).getHeight();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Point entries sharing a hash at the blob written for the first of them.
+     */
+    private static void copyBlobPositions(List<Entry> entries, Map<Long, Entry> blobs) {
+        for (Entry entry : entries) {
+            Entry blob = blobs.get(entry.hash);
+            if (entry.hash != 0 && blob != null) {
+                entry.copyBlob(blob);
+            }
+        }
+    }
+
+    private static byte[] encode(BufferedImage image, ImageCodec codec) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = codec.encode(image);
+        logThroughput("encode", codec, image, data.length, start);
+        return data;
+    }
+
+    private static void logThroughput(String operation, ImageCodec codec, BufferedImage image, long bytes, long startNanos) {
+        logThroughput(operation, codec, image.getWidth(), image.getHeight(), bytes, startNanos);
+    }
+
+    private static void logThroughput(String operation, ImageCodec codec, int width, int height, long bytes, long startNanos) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        double megapixels = (double) width * height / 1e6;
+        PerfLog.log("%s %s %dx%d: %.1f ms, %.1f MP/s, %.2f MB",
+                codec, operation, width, height,
+                seconds * 1e3, megapixels / seconds, bytes / 1e6);
+    }
+
+    /**
+     * Release a mapping without waiting for GC. Best effort: uses the Java 8 cleaner or Java 9+ Unsafe if present.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // not Java 9+
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to GC
+        }
+    }
+
+    /**
+     * Stream a {@link ImageCodec#RAW} blob to the file pointer. Images behind a tile source are read a strip
+     * at a time, so neither they nor the blob are ever in memory as a whole.
+     */
+    private static void writeRawBlob(RandomAccessFile file, Entry entry, ImageSource image) throws IOException {
+        long start = System.nanoTime();
+        entry.offset = file.getFilePointer();
+        // writes at and advances the channel position, which is the file pointer. Not closed, that would close the file
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 1 << 20);
+        TileSource tileSource = image.getTileSource();
+        if (tileSource != null) {
+            ImageCodec.writeRaw(tileSource, out);
+        } else {
+            ImageCodec.writeRaw(image.getImage(), out);
+        }
+        out.flush();
+        entry.length = file.getFilePointer() - entry.offset;
+        logThroughput("encode", ImageCodec.RAW, image.getWidth(), image.getHeight(), entry.length, start);
+    }
+
+    private static void writeBlob(RandomAccessFile file, Entry entry, byte[] data) throws IOException {
+        entry.offset = file.getFilePointer();
+        entry.length = data.length;
+        file.write(data);
+    }
+
+    private void commitIndex() throws IOException {
+        generation = newGeneration();
+        indexOffset = file.getFilePointer();
+        commitIndex(file, entries, generation);
+    }
+
+    /**
+     * Append the index at the current file pointer and point the header at it.
+     * Everything is forced to disk before and after the header is patched.
+     */
+    private static void commitIndex(RandomAccessFile file, List<Entry> entries, long generation) throws IOException {
+        long indexOffset = file.getFilePointer();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(generation);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeLong(entry.offset);
+            out.writeLong(entry.length);
+            out.writeByte(entry.codec.id);
+            out.writeInt(entry.width);
+            out.writeInt(entry.height);
+            out.writeLong(entry.hash);
+            byte[] state = writeState(entry.state);
+            out.writeInt(state.length);
+            out.write(state);
+        }
+        file.write(buffer.toByteArray());
+        file.setLength(file.getFilePointer());
+        file.getChannel().force(true);
+        file.seek(VERSION_POSITION);
+        file.writeInt(VERSION);
+        file.writeLong(indexOffset);
+        file.getChannel().force(true);
+    }
+
+    private static long newGeneration() {
+        long generation;
+        do {
+            generation = ThreadLocalRandom.current().nextLong();
+        } while (generation == 0);
+        return generation;
+    }
+
+    private void readIndex(int version, long indexOffset) throws IOException {
+        if (indexOffset < HEADER_SIZE || indexOffset >= file.length()) {
+            throw new IOException("Broken workspace index");
+        }
+        file.seek(indexOffset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+        if (version >= 3) {
+            generation = in.readLong();
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            Entry entry = new Entry();
+            entry.offset = in.readLong();
+            entry.length = version >= 5 ? in.readLong() : in.readInt();
+            if (version >= 4) {
+                entry.codec = ImageCodec.byId(in.readByte());
+            }
+            entry.width = in.readInt();
+            entry.height = in.readInt();
+            if (version >= 2) {
+                entry.hash = in.readLong();
+            }
+            byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            entry.state = readState(state);
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * State records are length-prefixed in the index, so fields can be appended in later versions
+     * and older readers simply ignore the tail.
+     */
+    static byte[] writeState(ReferenceImage.ImageState state) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeBoolean(state.visible);
+        out.writeBoolean(state.collapsed);
+        out.writeBoolean(state.flipHorizontal);
+        out.writeBoolean(state.flipVertical);
+        out.writeBoolean(state.greyscale);
+        out.writeDouble(state.scale);
+        out.writeInt(state.rotationDeg);
+        out.writeFloat(state.opacity);
+        out.writeInt(state.x);
+        out.writeInt(state.y);
+        out.writeDouble(state.centerX);
+        out.writeDouble(state.centerY);
+        out.writeUTF(state.filters != null ? state.filters : "");
+        return buffer.toByteArray();
+    }
+
+    static ReferenceImage.ImageState readState(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ReferenceImage.ImageState state = new ReferenceImage.ImageState();
+        state.visible = in.readBoolean();
+        state.collapsed = in.readBoolean();
+        state.flipHorizontal = in.readBoolean();
+        state.flipVertical = in.readBoolean();
+        state.greyscale = in.readBoolean();
+        state.scale = in.readDouble();
+        state.rotationDeg = in.readInt();
+        state.opacity = in.readFloat();
+        state.x = in.readInt();
+        state.y = in.readInt();
+        state.centerX = in.readDouble();
+        state.centerY = in.readDouble();
+        // absent in records written before filters existed
+        state.filters = in.available() > 0 ? in.readUTF() : null;
+        return state;
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.github.x6ud.puppetview.workspace;
+
+import com.github.x6ud.puppetview.window.ReferenceImage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of image state changes made since the last checkpoint of a workspace.
+ * <p>
+ * Layout:
+ * <pre>
+ * header   int magic, long generation
+ * records  int position, int stateLength, state, int crc      (stateLength -1 means the image was closed)
+ * </pre>
+ * <code>position</code> is the index of the image in the checkpoint whose generation is in the header.
+ * <code>crc</code> is the CRC-32 of the rest of the record. Journals of any other generation are ignored, and
+ * replay stops at the first torn or damaged record.
+ */
+public class WorkspaceJournal implements Closeable {
+
+    private static final int MAGIC = 0x50564a32; // "PVJ2"
+    private static final int REMOVED = -1;
+    private static final int MAX_STATE_LENGTH = 1 << 16;
+
+    private final RandomAccessFile file;
+
+    private WorkspaceJournal(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    public static String getPath(String workspacePath) {
+        return workspacePath + ".journal";
+    }
+
+    /**
+     * Start an empty journal on top of the checkpoint with the given generation.
+     */
+    public static WorkspaceJournal create(String workspacePath, long generation) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getPath(workspacePath), "rw");
+        try {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeLong(generation);
+            file.getChannel().force(true);
+            return new WorkspaceJournal(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public void writeState(int position, ReferenceImage.ImageState state) throws IOException {
+        byte[] data = WorkspaceFile.writeState(state);
+        writeRecord(position, data.length, data);
+    }
+
+    public void writeRemoved(int position) throws IOException {
+        writeRecord(position, REMOVED, new byte[0]);
+    }
+
+    /**
+     * Force written records to disk.
+     */
+    public void sync() throws IOException {
+        file.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void writeRecord(int position, int length, byte[] data) throws IOException {
+        byte[] record = encodeRecord(position, length, data);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(record.length + 4);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.write(record);
+        out.writeInt(crc(record));
+        file.write(buffer.toByteArray());
+    }
+
+    /**
+     * A record without its CRC.
+     */
+    private static byte[] encodeRecord(int position, int length, byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8 + data.length);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(position);
+        out.writeInt(length);
+        out.write(data);
+        return buffer.toByteArray();
+    }
+
+    private static int crc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Apply the journal of a workspace to the entries of its checkpoint.
+     * Entries of closed images are removed from the list.
+     */
+    public static void replay(String workspacePath, long generation, List<WorkspaceFile.Entry> entries) {
+        String path = getPath(workspacePath);
+        if (generation == 0 || !Files.exists(Paths.get(path))) {
+            return;
+        }
+        List<WorkspaceFile.Entry> removed = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readLong() != generation) {
+                return;
+            }
+            while (true) {
+                int position = in.readInt();
+                int length = in.readInt();
+                if (position < 0 || position >= entries.size()
+                        || length != REMOVED && (length < 0 || length > MAX_STATE_LENGTH)) {
+                    break;
+                }
+                byte[] data = new byte[length == REMOVED ? 0 : length];
+                in.readFully(data);
+                if (in.readInt() != crc(encodeRecord(position, length, data))) {
+                    break;
+                }
+                if (length == REMOVED) {
+                    removed.add(entries.get(position));
+                } else {
+                    entries.get(position).state = WorkspaceFile.readState(data);
+                }
+            }
+        } catch (EOFException e) {
+            // torn tail of an interrupted write
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        entries.removeAll(removed);
+    }
+
+}